@@ -0,0 +1,44 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package android.content;
+
+import java.util.Map;
+
+/**
+ * Benchmark shim with the part of the Android SharedPreferences API the 
+ * library uses.
+ */
+public interface SharedPreferences {
+
+	public Map<String, ?> getAll();
+	
+	public String getString(String key, String defValue);
+	
+	public Editor edit();
+	
+	public interface Editor {
+		
+		public Editor putString(String key, String value);
+		
+		public Editor remove(String key);
+		
+		public boolean commit();
+		
+		public void apply();
+		
+	}
+	
+}
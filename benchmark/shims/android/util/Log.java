@@ -0,0 +1,64 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package android.util;
+
+/**
+ * Benchmark shim for the Android Log. Messages are dropped unless the 
+ * simpl3r.log system property is set, so logging does not skew results.
+ */
+public final class Log {
+
+	private static final boolean ENABLED = System.getProperty("simpl3r.log") != null;
+	
+	private Log() {
+	}
+	
+	public static int d(String tag, String msg) {
+		return print("D", tag, msg, null);
+	}
+	
+	public static int i(String tag, String msg) {
+		return print("I", tag, msg, null);
+	}
+	
+	public static int w(String tag, String msg) {
+		return print("W", tag, msg, null);
+	}
+	
+	public static int w(String tag, String msg, Throwable tr) {
+		return print("W", tag, msg, tr);
+	}
+	
+	public static int e(String tag, String msg) {
+		return print("E", tag, msg, null);
+	}
+	
+	public static int e(String tag, String msg, Throwable tr) {
+		return print("E", tag, msg, tr);
+	}
+	
+	private static int print(String level, String tag, String msg, Throwable tr) {
+		if (!ENABLED) {
+			return 0;
+		}
+		System.err.println(level + "/" + tag + ": " + msg);
+		if (tr != null) {
+			tr.printStackTrace();
+		}
+		return 0;
+	}
+	
+}
@@ -0,0 +1,148 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package org.json;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Benchmark shim for org.json.JSONArray, limited to arrays of strings. 
+ * 
+ * Like the Android implementation it parses and escapes every character, so 
+ * the cost of encoding the ETag cache grows with its length in the same way.
+ */
+public class JSONArray {
+
+	private final List<String> values = new ArrayList<String>();
+	
+	public JSONArray() {
+	}
+	
+	public JSONArray(String json) throws JSONException {
+		int i = skipWhitespace(json, 0);
+		if (i >= json.length() || json.charAt(i) != '[') {
+			throw new JSONException("Expected [ at " + i);
+		}
+		i = skipWhitespace(json, i + 1);
+		if (i < json.length() && json.charAt(i) == ']') {
+			return;
+		}
+		StringBuilder value = new StringBuilder();
+		while (true) {
+			if (i >= json.length() || json.charAt(i) != '"') {
+				throw new JSONException("Expected string at " + i);
+			}
+			value.setLength(0);
+			i = readString(json, i + 1, value);
+			values.add(value.toString());
+			i = skipWhitespace(json, i);
+			if (i >= json.length()) {
+				throw new JSONException("Unterminated array");
+			}
+			char c = json.charAt(i);
+			if (c == ']') {
+				return;
+			} else if (c != ',') {
+				throw new JSONException("Expected , or ] at " + i);
+			}
+			i = skipWhitespace(json, i + 1);
+		}
+	}
+	
+	public JSONArray put(Object value) {
+		values.add(String.valueOf(value));
+		return this;
+	}
+	
+	public int length() {
+		return values.size();
+	}
+	
+	public String optString(int index) {
+		return index >= 0 && index < values.size() ? values.get(index) : "";
+	}
+	
+	@Override
+	public String toString() {
+		StringBuilder json = new StringBuilder("[");
+		for (int i = 0; i < values.size(); i++) {
+			if (i > 0) {
+				json.append(',');
+			}
+			writeString(json, values.get(i));
+		}
+		return json.append(']').toString();
+	}
+	
+	private static int skipWhitespace(String json, int i) {
+		while (i < json.length() && Character.isWhitespace(json.charAt(i))) {
+			i++;
+		}
+		return i;
+	}
+	
+	private static int readString(String json, int i, StringBuilder out) throws JSONException {
+		while (i < json.length()) {
+			char c = json.charAt(i++);
+			if (c == '"') {
+				return i;
+			} else if (c != '\\') {
+				out.append(c);
+			} else if (i < json.length()) {
+				char e = json.charAt(i++);
+				switch (e) {
+				case 'n': out.append('\n'); break;
+				case 'r': out.append('\r'); break;
+				case 't': out.append('\t'); break;
+				case 'b': out.append('\b'); break;
+				case 'f': out.append('\f'); break;
+				case 'u':
+					if (i + 4 > json.length()) {
+						throw new JSONException("Bad escape at " + i);
+					}
+					out.append((char) Integer.parseInt(json.substring(i, i + 4), 16));
+					i += 4;
+					break;
+				default: out.append(e);
+				}
+			}
+		}
+		throw new JSONException("Unterminated string");
+	}
+	
+	private static void writeString(StringBuilder json, String value) {
+		json.append('"');
+		for (int i = 0; i < value.length(); i++) {
+			char c = value.charAt(i);
+			switch (c) {
+			case '"': json.append("\\\""); break;
+			case '\\': json.append("\\\\"); break;
+			case '/': json.append("\\/"); break;
+			case '\n': json.append("\\n"); break;
+			case '\r': json.append("\\r"); break;
+			case '\t': json.append("\\t"); break;
+			default:
+				if (c < 0x20) {
+					json.append(String.format("\\u%04x", (int) c));
+				} else {
+					json.append(c);
+				}
+			}
+		}
+		json.append('"');
+	}
+	
+}
@@ -0,0 +1,104 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+
+import com.amazonaws.services.s3.internal.InputSubstream;
+import com.amazonaws.services.s3.internal.RepeatableFileInputStream;
+import com.amazonaws.services.s3.model.UploadPartRequest;
+import com.readystatesoftware.simpl3r.benchmark.Benchmark;
+
+/**
+ * Building a part request and opening its body, up to the first buffer 
+ * the SDK would read. The parameter is the number of parts in the file. 
+ * 
+ * The legacy variant opens the file and skips to the part as the SDK does 
+ * for withFile() requests. AmazonS3Client itself is not exercised, since it 
+ * cannot be created without the Apache HTTP client that only Android ships.
+ */
+public abstract class PartRequestBenchmark extends Benchmark {
+
+	private static final long PART_SIZE = 5 * 1024 * 1024;
+	
+	protected File file;
+	protected UploadSource source;
+	private final byte[] buffer = new byte[8 * 1024];
+	private int parts;
+	private int next = 0;
+	
+	protected PartRequestBenchmark(String name) {
+		super(name, 4, 64);
+	}
+	
+	@Override
+	public void setUp(int param) throws Exception {
+		parts = param;
+		file = File.createTempFile("simpl3r", ".bin");
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.setLength(parts * PART_SIZE);
+		raf.close();
+		source = UploadSource.fromFile(file);
+	}
+	
+	@Override
+	public void tearDown() {
+		source.close();
+		file.delete();
+	}
+	
+	protected abstract InputStream openPart(long position, long size) throws Exception;
+	
+	public Object run() throws Exception {
+		int k = next++ % parts;
+		long position = k * PART_SIZE;
+		UploadPartRequest request = new UploadPartRequest().withBucketName("bucket")
+				.withKey("benchmark/object.bin").withUploadId("upload-id")
+				.withPartNumber(k + 1).withPartSize(PART_SIZE);
+		InputStream in = openPart(position, PART_SIZE);
+		request.setInputStream(in);
+		in.read(buffer);
+		in.close();
+		return request;
+	}
+	
+	public static class Channel extends PartRequestBenchmark {
+		
+		public Channel() {
+			super("part-request-channel");
+		}
+		
+		protected InputStream openPart(long position, long size) throws Exception {
+			return source.openRange(position, size);
+		}
+		
+	}
+	
+	public static class LegacyFile extends PartRequestBenchmark {
+		
+		public LegacyFile() {
+			super("part-request-legacy-file");
+		}
+		
+		protected InputStream openPart(long position, long size) throws Exception {
+			return new InputSubstream(new RepeatableFileInputStream(file), position, size, true);
+		}
+		
+	}
+	
+}
@@ -0,0 +1,88 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import com.amazonaws.services.s3.model.ProgressEvent;
+import com.readystatesoftware.simpl3r.Uploader.UploadProgressListener;
+import com.readystatesoftware.simpl3r.benchmark.Benchmark;
+
+/**
+ * The cost of each SDK progress event, which arrives for every 8KB sent. 
+ * The parameter is the minimum interval between callbacks in milliseconds.
+ */
+public abstract class ProgressDispatchBenchmark extends Benchmark {
+
+	private static final int EVENT_BYTES = 8 * 1024;
+	private static final long CONTENT_LENGTH = 1024L * 1024 * 1024;
+	
+	private ProgressDispatcher dispatcher;
+	private long totalBytes;
+	private long callbacks;
+	
+	private final UploadProgressListener listener = new UploadProgressListener() {
+		public void progressChanged(ProgressEvent progressEvent, long bytesUploaded, int percentUploaded) {
+			callbacks++;
+		}
+	};
+	
+	protected ProgressDispatchBenchmark(String name) {
+		super(name, 0, 250);
+	}
+	
+	protected abstract java.util.concurrent.Executor getExecutor();
+	
+	@Override
+	public void setUp(int param) {
+		dispatcher = new ProgressDispatcher(listener, getExecutor(), param, 64 * 1024, CONTENT_LENGTH, 0);
+		totalBytes = 0;
+	}
+	
+	public Object run() {
+		totalBytes += EVENT_BYTES;
+		dispatcher.progressChanged(0, totalBytes);
+		return listener;
+	}
+	
+	public static class Direct extends ProgressDispatchBenchmark {
+		
+		public Direct() {
+			super("progress-dispatch");
+		}
+		
+		protected java.util.concurrent.Executor getExecutor() {
+			return null;
+		}
+		
+	}
+	
+	public static class Executor extends ProgressDispatchBenchmark {
+		
+		public Executor() {
+			super("progress-dispatch-executor");
+		}
+		
+		protected java.util.concurrent.Executor getExecutor() {
+			// runs callbacks inline, so only the coalescing overhead is measured
+			return new java.util.concurrent.Executor() {
+				public void execute(Runnable command) {
+					command.run();
+				}
+			};
+		}
+		
+	}
+	
+}
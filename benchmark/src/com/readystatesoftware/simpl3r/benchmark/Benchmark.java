@@ -0,0 +1,56 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r.benchmark;
+
+/**
+ * A measured operation, run repeatedly by the {@link BenchmarkRunner} for 
+ * each of its parameter values.
+ */
+public abstract class Benchmark {
+
+	private final String name;
+	private final int[] params;
+	
+	/**
+	 * @param name name used to select and report the benchmark
+	 * @param params values to run the benchmark with, passed to setUp()
+	 */
+	protected Benchmark(String name, int... params) {
+		this.name = name;
+		this.params = params;
+	}
+	
+	public String getName() {
+		return name;
+	}
+	
+	public int[] getParams() {
+		return params;
+	}
+	
+	public void setUp(int param) throws Exception {
+	}
+	
+	/**
+	 * Perform one operation. The result is consumed so the work cannot be 
+	 * optimised away.
+	 */
+	public abstract Object run() throws Exception;
+	
+	public void tearDown() throws Exception {
+	}
+	
+}
@@ -0,0 +1,138 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r.benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+
+import com.readystatesoftware.simpl3r.PartRequestBenchmark;
+import com.readystatesoftware.simpl3r.ProgressDispatchBenchmark;
+
+/**
+ * Runs benchmarks in the style of JMH: a number of timed warmup iterations 
+ * that are discarded, then timed iterations whose average time per 
+ * operation is reported with its spread.
+ * 
+ * Usage: BenchmarkRunner [-w warmups] [-i iterations] [-t millis] [name filter...]
+ */
+public class BenchmarkRunner {
+
+	private static volatile int sink;
+	
+	public static void main(String[] args) throws Exception {
+		
+		int warmups = 3;
+		int iterations = 5;
+		long iterationMillis = 500;
+		List<String> filters = new ArrayList<String>();
+		for (int i = 0; i < args.length; i++) {
+			if ("-w".equals(args[i])) {
+				warmups = Integer.parseInt(args[++i]);
+			} else if ("-i".equals(args[i])) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if ("-t".equals(args[i])) {
+				iterationMillis = Long.parseLong(args[++i]);
+			} else {
+				filters.add(args[i]);
+			}
+		}
+		
+		List<Benchmark> benchmarks = Arrays.asList(
+				new ResumeStoreBenchmark.PrefsAppend(),
+				new ResumeStoreBenchmark.JournalAppend(),
+				new ResumeStoreBenchmark.PrefsRead(),
+				new ResumeStoreBenchmark.JournalRead(),
+				new ProgressDispatchBenchmark.Direct(),
+				new ProgressDispatchBenchmark.Executor(),
+				new PartRequestBenchmark.Channel(),
+				new PartRequestBenchmark.LegacyFile());
+		
+		System.out.println(String.format(Locale.US, "%-28s %8s %16s %14s %10s", 
+				"Benchmark", "Param", "ns/op", "error", "ops"));
+		for (Benchmark benchmark : benchmarks) {
+			if (!matches(benchmark, filters)) {
+				continue;
+			}
+			for (int param : benchmark.getParams()) {
+				benchmark.setUp(param);
+				try {
+					for (int i = 0; i < warmups; i++) {
+						iterate(benchmark, iterationMillis, null);
+					}
+					double[] results = new double[iterations];
+					long[] ops = new long[1];
+					for (int i = 0; i < iterations; i++) {
+						results[i] = iterate(benchmark, iterationMillis, ops);
+					}
+					report(benchmark, param, results, ops[0]);
+				} finally {
+					benchmark.tearDown();
+				}
+			}
+		}
+	}
+	
+	private static boolean matches(Benchmark benchmark, List<String> filters) {
+		if (filters.isEmpty()) {
+			return true;
+		}
+		for (String filter : filters) {
+			if (benchmark.getName().contains(filter)) {
+				return true;
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Run the operation until the iteration time has passed, at least once.
+	 * 
+	 * @return the average nanoseconds per operation
+	 */
+	private static double iterate(Benchmark benchmark, long millis, long[] totalOps) throws Exception {
+		long ops = 0;
+		long start = System.nanoTime();
+		long deadline = start + millis * 1000000L;
+		long now;
+		do {
+			sink += System.identityHashCode(benchmark.run());
+			ops++;
+			now = System.nanoTime();
+		} while (now < deadline);
+		if (totalOps != null) {
+			totalOps[0] += ops;
+		}
+		return (double) (now - start) / ops;
+	}
+	
+	private static void report(Benchmark benchmark, int param, double[] results, long ops) {
+		double mean = 0;
+		for (double result : results) {
+			mean += result;
+		}
+		mean /= results.length;
+		double variance = 0;
+		for (double result : results) {
+			variance += (result - mean) * (result - mean);
+		}
+		double error = results.length > 1 ? Math.sqrt(variance / (results.length - 1)) : 0;
+		System.out.println(String.format(Locale.US, "%-28s %8d %16.1f %14s %10d", 
+				benchmark.getName(), param, mean, "+- " + String.format(Locale.US, "%.1f", error), ops));
+	}
+	
+}
@@ -0,0 +1,79 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r.benchmark;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import android.content.SharedPreferences;
+
+/**
+ * In-memory stand-in for SharedPreferences. 
+ * 
+ * Edits are applied to a map, so benchmarks measure the library's own 
+ * encoding work but not the XML file Android writes on each apply.
+ */
+public class MemorySharedPreferences implements SharedPreferences {
+
+	private final Map<String, String> values = new HashMap<String, String>();
+	
+	public synchronized Map<String, ?> getAll() {
+		return new HashMap<String, String>(values);
+	}
+	
+	public synchronized String getString(String key, String defValue) {
+		String value = values.get(key);
+		return value == null ? defValue : value;
+	}
+
+	public Editor edit() {
+		return new MemoryEditor();
+	}
+	
+	private class MemoryEditor implements Editor {
+		
+		private final Map<String, String> changes = new HashMap<String, String>();
+		
+		public Editor putString(String key, String value) {
+			changes.put(key, value);
+			return this;
+		}
+		
+		public Editor remove(String key) {
+			changes.put(key, null);
+			return this;
+		}
+		
+		public boolean commit() {
+			synchronized (MemorySharedPreferences.this) {
+				for (Map.Entry<String, String> change : changes.entrySet()) {
+					if (change.getValue() == null) {
+						values.remove(change.getKey());
+					} else {
+						values.put(change.getKey(), change.getValue());
+					}
+				}
+			}
+			return true;
+		}
+		
+		public void apply() {
+			commit();
+		}
+		
+	}
+
+}
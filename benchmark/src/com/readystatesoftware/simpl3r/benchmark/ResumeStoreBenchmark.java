@@ -0,0 +1,177 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r.benchmark;
+
+import java.io.File;
+import java.util.List;
+
+import com.readystatesoftware.simpl3r.JournalResumeStore;
+import com.readystatesoftware.simpl3r.PartRecord;
+import com.readystatesoftware.simpl3r.ResumeEntry;
+import com.readystatesoftware.simpl3r.ResumeStore;
+import com.readystatesoftware.simpl3r.SharedPreferencesResumeStore;
+
+/**
+ * Caching part ETags as they complete, and reading them back to resume, 
+ * for uploads of 10 to 10,000 parts.
+ */
+public abstract class ResumeStoreBenchmark extends Benchmark {
+
+	private static final String KEY = "benchmark/object.bin";
+	private static final String UPLOAD_ID = "VXBsb2FkIElEIGZvciBlbHZpbmcncyBteS1tb3ZpZS5tMnRzIHVwbG9hZA";
+	private static final String BUCKET = "benchmark-bucket";
+	private static final long PART_SIZE = 5 * 1024 * 1024;
+	
+	protected ResumeStore store;
+	protected int parts;
+	private File directory;
+	
+	protected ResumeStoreBenchmark(String name) {
+		super(name, 10, 100, 1000, 10000);
+	}
+	
+	protected abstract ResumeStore createStore(File directory);
+	
+	@Override
+	public void setUp(int param) throws Exception {
+		parts = param;
+		directory = File.createTempFile("simpl3r", "bench");
+		directory.delete();
+		directory.mkdirs();
+		store = createStore(directory);
+	}
+	
+	@Override
+	public void tearDown() throws Exception {
+		store.clear(KEY);
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+		directory.delete();
+	}
+	
+	/**
+	 * Record a new upload and every one of its parts, as a full upload does.
+	 */
+	protected Object appendAll() {
+		store.startUpload(new ResumeEntry(KEY, UPLOAD_ID, BUCKET, KEY, null, System.currentTimeMillis(), null, null));
+		for (int k = 1; k <= parts; k++) {
+			store.addPart(KEY, new PartRecord(k, etag(k), (k - 1) * PART_SIZE, PART_SIZE));
+		}
+		store.flush(KEY);
+		return store;
+	}
+	
+	/**
+	 * Read back the state a resumed upload starts from.
+	 */
+	protected Object readAll() {
+		String uploadId = store.getUploadId(KEY);
+		List<PartRecord> records = store.getParts(KEY);
+		if (uploadId == null || records.size() != parts) {
+			throw new IllegalStateException("Resume state was not read back");
+		}
+		return records;
+	}
+	
+	private static String etag(int partNumber) {
+		return String.format("%032x", (long) partNumber * 0x9E3779B97F4A7C15L);
+	}
+	
+	private static ResumeStore prefsStore() {
+		return new SharedPreferencesResumeStore(new MemorySharedPreferences());
+	}
+	
+	public static class PrefsAppend extends ResumeStoreBenchmark {
+		
+		public PrefsAppend() {
+			super("prefs-append");
+		}
+		
+		protected ResumeStore createStore(File directory) {
+			return prefsStore();
+		}
+		
+		public Object run() {
+			return appendAll();
+		}
+		
+	}
+	
+	public static class JournalAppend extends ResumeStoreBenchmark {
+		
+		public JournalAppend() {
+			super("journal-append");
+		}
+		
+		protected ResumeStore createStore(File directory) {
+			return new JournalResumeStore(directory);
+		}
+		
+		public Object run() {
+			return appendAll();
+		}
+		
+	}
+	
+	public static class PrefsRead extends ResumeStoreBenchmark {
+		
+		public PrefsRead() {
+			super("prefs-resume-parse");
+		}
+		
+		protected ResumeStore createStore(File directory) {
+			return prefsStore();
+		}
+		
+		@Override
+		public void setUp(int param) throws Exception {
+			super.setUp(param);
+			appendAll();
+		}
+		
+		public Object run() {
+			return readAll();
+		}
+		
+	}
+	
+	public static class JournalRead extends ResumeStoreBenchmark {
+		
+		public JournalRead() {
+			super("journal-resume-parse");
+		}
+		
+		protected ResumeStore createStore(File directory) {
+			return new JournalResumeStore(directory);
+		}
+		
+		@Override
+		public void setUp(int param) throws Exception {
+			super.setUp(param);
+			appendAll();
+		}
+		
+		public Object run() {
+			return readAll();
+		}
+		
+	}
+	
+}
@@ -52,6 +52,7 @@ public class UploadService extends IntentService {
 	private Uploader uploader;
 	
 	private NotificationManager nm;
+	private NotificationCompat.Builder notificationBuilder;
 	
 	public UploadService() {
 		super("simpl3r-example-upload");
@@ -83,11 +84,17 @@ public class UploadService extends IntentService {
 		uploader = new Uploader(this, s3Client, s3BucketName, s3ObjectKey, fileToUpload);
 
 		// listen for progress updates and broadcast/notify them appropriately
-		uploader.setProgressListener(new UploadProgressListener() {			
+		uploader.setProgressInterval(500, 0);
+		uploader.setProgressListener(new UploadProgressListener() {
+			int lastPercent = -1;
 			@Override
 			public void progressChanged(ProgressEvent progressEvent,
 					long bytesUploaded, int percentUploaded) {
 				
+				if (percentUploaded == lastPercent) {
+					return;
+				}
+				lastPercent = percentUploaded;
 				Notification notification = buildNotification(msg, percentUploaded);
 				nm.notify(NOTIFY_ID_UPLOAD, notification);
 				broadcastState(s3ObjectKey, percentUploaded, msg);
@@ -128,21 +135,24 @@ public class UploadService extends IntentService {
 	}
 
 	private Notification buildNotification(String msg, int progress) {	
-		NotificationCompat.Builder builder = new NotificationCompat.Builder(this);
-		builder.setWhen(System.currentTimeMillis());
-		builder.setTicker(msg);
-		builder.setContentTitle(getString(R.string.app_name));
-		builder.setContentText(msg);
-		builder.setSmallIcon(R.drawable.ic_stat_uploading);
-		builder.setOngoing(true);
-		builder.setProgress(100, progress, false);
-		
-		Intent notificationIntent = new Intent(this, MainActivity.class);
-		notificationIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
-		PendingIntent contentIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
-		builder.setContentIntent(contentIntent);
+		// reuse the builder so progress updates only change what they need to
+		if (notificationBuilder == null) {
+			notificationBuilder = new NotificationCompat.Builder(this);
+			notificationBuilder.setWhen(System.currentTimeMillis());
+			notificationBuilder.setContentTitle(getString(R.string.app_name));
+			notificationBuilder.setSmallIcon(R.drawable.ic_stat_uploading);
+			notificationBuilder.setOngoing(true);
+			
+			Intent notificationIntent = new Intent(this, MainActivity.class);
+			notificationIntent.setFlags(Intent.FLAG_ACTIVITY_CLEAR_TOP);
+			PendingIntent contentIntent = PendingIntent.getActivity(this, 0, notificationIntent, 0);
+			notificationBuilder.setContentIntent(contentIntent);
+		}
+		notificationBuilder.setTicker(msg);
+		notificationBuilder.setContentText(msg);
+		notificationBuilder.setProgress(100, progress, false);
 		
-		return builder.build();
+		return notificationBuilder.build();
 	}
 	
 	private BroadcastReceiver uploadCancelReceiver = new BroadcastReceiver() {
@@ -0,0 +1,150 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.io.InterruptedIOException;
+
+/**
+ * Token bucket that caps the combined upload rate of every uploader sharing it. 
+ * 
+ * Tokens accrue continuously at the configured rate and the bucket holds about 
+ * a tenth of a second's worth, so traffic is shaped into small even bursts 
+ * instead of whole parts followed by long pauses. The rate can be changed at 
+ * any time, including while uploads are waiting on the limiter.
+ */
+public class BandwidthLimiter {
+
+	private static final long NANOS_PER_SECOND = 1000000000L;
+	private static final long MIN_BUCKET_SIZE = 4 * 1024;
+	private static final long THROUGHPUT_WINDOW_NANOS = NANOS_PER_SECOND;
+	
+	private long bytesPerSecond;
+	private long bucketSize;
+	private double tokens;
+	private long lastRefill = System.nanoTime();
+	
+	private long totalBytes;
+	private long windowStart = System.nanoTime();
+	private long windowBytes;
+	private long throughput;
+	
+	/**
+	 * @param bytesPerSecond maximum combined rate, or 0 for no limit
+	 */
+	public BandwidthLimiter(long bytesPerSecond) {
+		setBytesPerSecond(bytesPerSecond);
+	}
+	
+	public synchronized long getBytesPerSecond() {
+		return bytesPerSecond;
+	}
+	
+	/**
+	 * @param bytesPerSecond maximum combined rate, or 0 for no limit
+	 */
+	public synchronized void setBytesPerSecond(long bytesPerSecond) {
+		if (bytesPerSecond < 0) {
+			throw new IllegalStateException("Rate must not be negative");
+		}
+		refill(System.nanoTime());
+		this.bytesPerSecond = bytesPerSecond;
+		this.bucketSize = Math.max(MIN_BUCKET_SIZE, bytesPerSecond / 10);
+		tokens = Math.min(tokens, bucketSize);
+		// let waiting readers pick up the new rate
+		notifyAll();
+	}
+	
+	/**
+	 * @return the measured combined rate over the last second, in bytes per second
+	 */
+	public synchronized long getThroughput() {
+		updateThroughput(System.nanoTime());
+		return throughput;
+	}
+	
+	/**
+	 * @return the total number of bytes that have passed through the limiter
+	 */
+	public synchronized long getBytesTransferred() {
+		return totalBytes;
+	}
+	
+	/**
+	 * @return the largest read that should be made before calling {@link #acquire(int, Cancellable)}
+	 */
+	synchronized int getMaxChunk() {
+		return (int) Math.min(Integer.MAX_VALUE, bucketSize);
+	}
+	
+	/**
+	 * Block until the given number of bytes may be sent, or the owner of the 
+	 * read is cancelled.
+	 */
+	synchronized void acquire(int bytes, Cancellable owner) throws InterruptedIOException {
+		long now = System.nanoTime();
+		refill(now);
+		// the rate may have been lowered since the read was sized, so a read 
+		// larger than the bucket is paid for a bucket at a time
+		long remaining = bytes;
+		while (bytesPerSecond > 0 && remaining > 0) {
+			long chunk = Math.min(remaining, bucketSize);
+			if (tokens >= chunk) {
+				tokens -= chunk;
+				remaining -= chunk;
+				continue;
+			}
+			if (owner != null && owner.isCancelled()) {
+				throw new InterruptedIOException("Upload cancelled");
+			}
+			long waitNanos = (long) ((chunk - tokens) * NANOS_PER_SECOND / bytesPerSecond);
+			try {
+				wait(Math.max(1, waitNanos / 1000000L), (int) (waitNanos % 1000000L));
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted waiting for bandwidth");
+			}
+			now = System.nanoTime();
+			refill(now);
+		}
+		totalBytes += bytes;
+		windowBytes += bytes;
+		updateThroughput(now);
+	}
+	
+	/**
+	 * Wake waiting readers so they can notice a cancellation.
+	 */
+	synchronized void wakeWaiters() {
+		notifyAll();
+	}
+	
+	private void refill(long now) {
+		if (bytesPerSecond > 0) {
+			tokens = Math.min(bucketSize, tokens + (double) (now - lastRefill) * bytesPerSecond / NANOS_PER_SECOND);
+		}
+		lastRefill = now;
+	}
+	
+	private void updateThroughput(long now) {
+		long elapsed = now - windowStart;
+		if (elapsed >= THROUGHPUT_WINDOW_NANOS) {
+			throughput = windowBytes * NANOS_PER_SECOND / elapsed;
+			windowStart = now;
+			windowBytes = 0;
+		}
+	}
+	
+}
@@ -0,0 +1,60 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+
+/**
+ * Input stream that fails its next read once its owner is cancelled, so a 
+ * request stops sending without the client being shut down.
+ */
+class CancellableInputStream extends FilterInputStream {
+
+	private final Cancellable owner;
+	
+	CancellableInputStream(InputStream in, Cancellable owner) {
+		super(in);
+		this.owner = owner;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		checkCancelled();
+		return super.read();
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		checkCancelled();
+		return super.read(b, off, len);
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		checkCancelled();
+		return super.skip(n);
+	}
+	
+	private void checkCancelled() throws InterruptedIOException {
+		if (owner.isCancelled()) {
+			throw new InterruptedIOException("Upload cancelled");
+		}
+	}
+	
+}
@@ -0,0 +1,150 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.readystatesoftware.simpl3r;
+
+/**
+ * Grows and shrinks the number of parts in flight with additive increase 
+ * and multiplicative decrease, the way TCP sizes its congestion window. 
+ * 
+ * The window grows by one part for each window's worth of parts completed 
+ * at a healthy speed. It shrinks by a quarter when a part takes much longer 
+ * per byte than the fastest of the recent parts, a sign that the parts are 
+ * competing for a saturated link, and by half when a part fails. Parts that 
+ * started before the last decrease do not trigger another, so one burst of 
+ * congestion only shrinks the window once. Parts much smaller than the 
+ * recent ones, like the last part of an upload, are left out. The window 
+ * always stays between the floor and the ceiling. Share one controller 
+ * between uploaders on the same network so they back off together.
+ */
+public class ConcurrencyController {
+	
+	private static final int DEFAULT_FLOOR = 1;
+	private static final int DEFAULT_CEILING = 6;
+	// how much slower per byte than the baseline a part may be before backing off
+	private static final double LATENCY_INFLATION = 1.5;
+	private static final double LATENCY_DECREASE = 0.75;
+	private static final double FAILURE_DECREASE = 0.5;
+	// parts the baseline is taken from, so it follows a link that gets slower
+	private static final int BASELINE_SAMPLES = 64;
+	// parts smaller than this share of the largest recent part are ignored, 
+	// their fixed per request cost makes them look slow per byte
+	private static final double MIN_PART_SHARE = 0.5;
+	
+	private final int floor;
+	private final int ceiling;
+	
+	private double window;
+	private final double[] samples = new double[BASELINE_SAMPLES];
+	private final long[] sampleBytes = new long[BASELINE_SAMPLES];
+	private int sampleCount = 0;
+	private int nextSample = 0;
+	private double baselineNanosPerByte = 0;
+	private long lastDecrease = System.nanoTime();
+	
+	public ConcurrencyController() {
+		this(DEFAULT_FLOOR, DEFAULT_CEILING);
+	}
+	
+	/**
+	 * @param floor fewest parts kept in flight, at least 1
+	 * @param ceiling most parts in flight
+	 */
+	public ConcurrencyController(int floor, int ceiling) {
+		if (floor < 1 || ceiling < floor) {
+			throw new IllegalStateException("Floor must be at least 1 and no more than the ceiling");
+		}
+		this.floor = floor;
+		this.ceiling = ceiling;
+		this.window = floor;
+	}
+	
+	/**
+	 * @return the number of parts that may be in flight now
+	 */
+	public synchronized int getWindow() {
+		return Math.max(floor, (int) window);
+	}
+	
+	public int getFloor() {
+		return floor;
+	}
+	
+	public int getCeiling() {
+		return ceiling;
+	}
+	
+	/**
+	 * @return the fastest recent per part throughput in bytes per second, or 0 before the first part
+	 */
+	public synchronized long getBaselineThroughput() {
+		return baselineNanosPerByte == 0 ? 0 : (long) (1000000000.0 / baselineNanosPerByte);
+	}
+	
+	/**
+	 * Called when a part has been sent.
+	 * 
+	 * @param bytes size of the part
+	 * @param latencyNanos time taken by the successful attempt
+	 */
+	public synchronized void partCompleted(long bytes, long latencyNanos) {
+		if (bytes <= 0 || latencyNanos <= 0) {
+			return;
+		}
+		long largest = 0;
+		for (int i = 0; i < sampleCount; i++) {
+			largest = Math.max(largest, sampleBytes[i]);
+		}
+		if (bytes < largest * MIN_PART_SHARE) {
+			// typically the last part of an upload
+			return;
+		}
+		long now = System.nanoTime();
+		double sample = (double) latencyNanos / bytes;
+		samples[nextSample] = sample;
+		sampleBytes[nextSample] = bytes;
+		nextSample = (nextSample + 1) % BASELINE_SAMPLES;
+		sampleCount = Math.min(sampleCount + 1, BASELINE_SAMPLES);
+		baselineNanosPerByte = sample;
+		for (int i = 0; i < sampleCount; i++) {
+			baselineNanosPerByte = Math.min(baselineNanosPerByte, samples[i]);
+		}
+		
+		if (sample > baselineNanosPerByte * LATENCY_INFLATION) {
+			decrease(now, now - latencyNanos, LATENCY_DECREASE);
+		} else {
+			window = Math.min(ceiling, window + 1 / window);
+		}
+	}
+	
+	/**
+	 * Called when a part attempt has failed.
+	 * 
+	 * @param latencyNanos time the failed attempt ran for
+	 */
+	public synchronized void partFailed(long latencyNanos) {
+		long now = System.nanoTime();
+		decrease(now, now - latencyNanos, FAILURE_DECREASE);
+	}
+	
+	private void decrease(long now, long partStarted, double factor) {
+		if (partStarted - lastDecrease < 0) {
+			// sent under the window before the last decrease
+			return;
+		}
+		window = Math.max(floor, window * factor);
+		lastDecrease = now;
+	}
+	
+}
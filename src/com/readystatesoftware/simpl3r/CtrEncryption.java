@@ -0,0 +1,144 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+
+package com.readystatesoftware.simpl3r;
+
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+
+import javax.crypto.Cipher;
+import javax.crypto.CipherInputStream;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.readystatesoftware.simpl3r.utils.DigestUtils;
+
+/**
+ * Encrypts uploads with AES in CTR mode as their parts stream. 
+ * 
+ * The counter for each part is derived from the part's offset in the 
+ * object, so parts are encrypted independently on their own threads, and a 
+ * resumed upload carries on at any part boundary. The stored object is a 
+ * single AES-CTR stream that decrypts with the IV in its metadata, from the 
+ * start or from any offset. 
+ * 
+ * The key itself is only held in memory. Objects record the key id given 
+ * here, so readers can tell which key to decrypt them with.
+ */
+public class CtrEncryption {
+
+	public static final String CIPHER = "AES/CTR/NoPadding";
+	public static final String METADATA_CIPHER = "simpl3r-cipher";
+	public static final String METADATA_IV = "simpl3r-iv";
+	public static final String METADATA_KEY_ID = "simpl3r-key-id";
+	
+	private static final int BLOCK_SIZE = 16;
+	
+	private final SecretKey key;
+	private final String keyId;
+	private final SecureRandom random = new SecureRandom();
+	
+	/**
+	 * @param key AES key
+	 * @param keyId name of the key, stored with each object in place of the key
+	 */
+	public CtrEncryption(SecretKey key, String keyId) {
+		if (keyId == null) {
+			throw new IllegalStateException("Key id must not be null");
+		}
+		this.key = key;
+		this.keyId = keyId;
+		try {
+			// fail now rather than on the first part
+			newCipher(new byte[BLOCK_SIZE], 0);
+		} catch (AmazonClientException e) {
+			throw new IllegalStateException("Invalid encryption key", e.getCause());
+		}
+	}
+	
+	public String getKeyId() {
+		return keyId;
+	}
+	
+	/**
+	 * @return a random IV for a new object
+	 */
+	public byte[] newIv() {
+		byte[] iv = new byte[BLOCK_SIZE];
+		random.nextBytes(iv);
+		return iv;
+	}
+	
+	/**
+	 * Record the cipher, IV and key id in an object's user metadata.
+	 */
+	public void addMetadata(ObjectMetadata metadata, byte[] iv) {
+		metadata.addUserMetadata(METADATA_CIPHER, CIPHER);
+		metadata.addUserMetadata(METADATA_IV, DigestUtils.toHex(iv));
+		metadata.addUserMetadata(METADATA_KEY_ID, keyId);
+	}
+	
+	/**
+	 * @param in bytes of the object starting at the offset
+	 * @param iv IV of the object
+	 * @param offset offset in the object of the first byte read from the stream
+	 */
+	public InputStream encrypt(InputStream in, byte[] iv, long offset) {
+		return new CipherInputStream(in, newCipher(iv, offset));
+	}
+	
+	/**
+	 * Decrypt a stored object, or a range of it. In CTR mode this is the 
+	 * same operation as encrypting.
+	 * 
+	 * @param in bytes of the object starting at the offset
+	 * @param iv IV from the object's metadata
+	 * @param offset offset in the object of the first byte read from the stream
+	 */
+	public InputStream decrypt(InputStream in, byte[] iv, long offset) {
+		return encrypt(in, iv, offset);
+	}
+	
+	/**
+	 * Create a cipher positioned at an offset, by adding the offset's block 
+	 * number to the IV and discarding the keystream before the offset within 
+	 * that block.
+	 */
+	private Cipher newCipher(byte[] iv, long offset) {
+		byte[] counter = iv.clone();
+		long carry = offset / BLOCK_SIZE;
+		for (int i = counter.length - 1; i >= 0 && carry != 0; i--) {
+			long sum = (counter[i] & 0xFF) + (carry & 0xFF);
+			counter[i] = (byte) sum;
+			carry = (carry >>> 8) + (sum >>> 8);
+		}
+		try {
+			Cipher cipher = Cipher.getInstance(CIPHER);
+			cipher.init(Cipher.ENCRYPT_MODE, key, new IvParameterSpec(counter));
+			int skip = (int) (offset % BLOCK_SIZE);
+			if (skip > 0) {
+				cipher.update(new byte[skip]);
+			}
+			return cipher;
+		} catch (GeneralSecurityException e) {
+			throw new AmazonClientException("Unable to initialize " + CIPHER, e);
+		}
+	}
+	
+}
@@ -0,0 +1,320 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.readystatesoftware.simpl3r;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazonaws.services.s3.model.ProgressEvent;
+import com.readystatesoftware.simpl3r.UploadManager.State;
+import com.readystatesoftware.simpl3r.UploadManager.UploadHandle;
+import com.readystatesoftware.simpl3r.Uploader.UploadProgressListener;
+
+/**
+ * Uploads the new and changed files of a directory tree under a key prefix. 
+ * 
+ * Files are compared with a {@link SyncManifest} by size and modification 
+ * time only, so a scan never reads file contents. Changed files are queued 
+ * on an {@link UploadManager}, which uploads several at once, and each one 
+ * is recorded in the manifest as soon as it completes. Unchanged files are 
+ * not touched, and objects of files that have been deleted are left on S3.
+ */
+public class DirectorySync {
+	
+	private static final String TAG = "Simpl3r";
+	private static final String PREFS_NAME = "preferences_simpl3r_sync";
+	
+	private final UploadManager manager;
+	private final String s3bucketName;
+	private final String keyPrefix;
+	private final File directory;
+	private SyncManifest manifest;
+	private FileFilter fileFilter;
+	private int priority = UploadManager.PRIORITY_NORMAL;
+	private SyncProgressListener progressListener;
+	private final List<UploadHandle> activeHandles = new ArrayList<UploadHandle>();
+	private volatile boolean userInterrupted = false;
+	
+	/**
+	 * @param context context used for the default manifest
+	 * @param manager manager the uploads are queued on
+	 * @param s3bucketName bucket to upload to
+	 * @param keyPrefix prepended to each file's path relative to the directory
+	 * @param directory root of the tree to upload
+	 */
+	public DirectorySync(Context context, UploadManager manager, String s3bucketName, String keyPrefix, File directory) {
+		this.manager = manager;
+		this.s3bucketName = s3bucketName;
+		this.keyPrefix = keyPrefix;
+		this.directory = directory;
+		manifest = new SyncManifest(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+	}
+	
+	/**
+	 * @return the files that are new or have changed since they were last uploaded
+	 */
+	public List<File> scan() {
+		List<File> changed = new ArrayList<File>();
+		scan(directory, changed);
+		return changed;
+	}
+	
+	private int scan(File dir, List<File> changed) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			Log.w(TAG, "unable to list " + dir);
+			return 0;
+		}
+		int unchanged = 0;
+		for (File file : files) {
+			if (fileFilter != null && !fileFilter.accept(file)) {
+				continue;
+			}
+			if (file.isDirectory()) {
+				unchanged += scan(file, changed);
+			} else {
+				SyncManifest.Entry entry = manifest.get(s3bucketName, getKey(file));
+				if (entry != null && entry.matches(file.length(), file.lastModified())) {
+					unchanged++;
+				} else {
+					changed.add(file);
+				}
+			}
+		}
+		return unchanged;
+	}
+	
+	/**
+	 * Upload every new or changed file, blocking until they have all finished. 
+	 * 
+	 * A file that fails does not stop the others, it is reported in the result 
+	 * and tried again by the next sync.
+	 */
+	public Result sync() {
+		
+		userInterrupted = false;
+		
+		List<File> changed = new ArrayList<File>();
+		Result result = new Result();
+		result.unchanged = scan(directory, changed);
+		
+		Log.i(TAG, "syncing " + changed.size() + " changed files, " + result.unchanged + " unchanged");
+		
+		long totalBytes = 0;
+		for (File file : changed) {
+			totalBytes += file.length();
+		}
+		Progress progress = new Progress(totalBytes, changed.size());
+		
+		// record what each file looked like before it was read
+		List<SyncManifest.Entry> scanned = new ArrayList<SyncManifest.Entry>();
+		List<UploadHandle> handles = new ArrayList<UploadHandle>();
+		synchronized (activeHandles) {
+			for (File file : changed) {
+				if (userInterrupted) {
+					break;
+				}
+				scanned.add(new SyncManifest.Entry(file.length(), file.lastModified(), null));
+				Uploader uploader = manager.newUploader(s3bucketName, getKey(file), file);
+				uploader.setProgressListener(progress.newFileListener());
+				UploadHandle handle = manager.enqueue(uploader, priority);
+				handles.add(handle);
+				activeHandles.add(handle);
+			}
+		}
+		
+		try {
+			for (int i = 0; i < handles.size(); i++) {
+				UploadHandle handle = handles.get(i);
+				File file = changed.get(i);
+				State state;
+				try {
+					state = handle.await();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					interrupt();
+					throw new UploadIterruptedException("Sync thread interrupted", e);
+				}
+				if (state == State.COMPLETED) {
+					SyncManifest.Entry entry = scanned.get(i);
+					manifest.put(s3bucketName, getKey(file), new SyncManifest.Entry(
+							entry.getSize(), entry.getLastModified(), handle.getUploader().getETag()));
+					result.uploaded.add(file);
+				} else if (state == State.FAILED) {
+					result.failed.put(file, handle.getException());
+				} else {
+					result.interrupted = true;
+				}
+			}
+		} finally {
+			synchronized (activeHandles) {
+				activeHandles.clear();
+			}
+		}
+		result.interrupted |= userInterrupted;
+		
+		Log.i(TAG, "sync uploaded " + result.uploaded.size() + " files, " + result.failed.size() + " failed");
+		
+		return result;
+	}
+	
+	/**
+	 * Stop the sync. Files not yet uploaded are picked up by the next sync, 
+	 * and partly uploaded ones resume where they left off.
+	 */
+	public void interrupt() {
+		userInterrupted = true;
+		synchronized (activeHandles) {
+			for (UploadHandle handle : activeHandles) {
+				manager.pause(handle);
+			}
+		}
+	}
+	
+	/**
+	 * @return the key a file in the directory is uploaded to
+	 */
+	public String getKey(File file) {
+		String relative = directory.toURI().relativize(file.toURI()).getPath();
+		return keyPrefix + relative;
+	}
+	
+	public SyncManifest getManifest() {
+		return manifest;
+	}
+	
+	public void setManifest(SyncManifest manifest) {
+		this.manifest = manifest;
+	}
+	
+	public FileFilter getFileFilter() {
+		return fileFilter;
+	}
+	
+	/**
+	 * @param fileFilter files and directories to include, or null for all
+	 */
+	public void setFileFilter(FileFilter fileFilter) {
+		this.fileFilter = fileFilter;
+	}
+	
+	public int getPriority() {
+		return priority;
+	}
+	
+	/**
+	 * @param priority priority the uploads are queued with on the manager
+	 */
+	public void setPriority(int priority) {
+		this.priority = priority;
+	}
+	
+	public SyncProgressListener getProgressListener() {
+		return progressListener;
+	}
+	
+	public void setProgressListener(SyncProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+	
+	/**
+	 * Adds up the progress of every file in a sync.
+	 */
+	private class Progress {
+		
+		final long totalBytes;
+		final int fileCount;
+		final AtomicLong bytesUploaded = new AtomicLong();
+		final AtomicInteger filesCompleted = new AtomicInteger();
+		
+		Progress(long totalBytes, int fileCount) {
+			this.totalBytes = totalBytes;
+			this.fileCount = fileCount;
+		}
+		
+		UploadProgressListener newFileListener() {
+			return new UploadProgressListener() {
+				
+				// callbacks for a single upload never overlap
+				private long fileBytes = 0;
+				
+				public void progressChanged(ProgressEvent progressEvent, long bytesUploaded, int percentUploaded) {
+					long total = Progress.this.bytesUploaded.addAndGet(bytesUploaded - fileBytes);
+					fileBytes = bytesUploaded;
+					int completed = progressEvent.getEventCode() == ProgressEvent.COMPLETED_EVENT_CODE 
+							? filesCompleted.incrementAndGet() : filesCompleted.get();
+					SyncProgressListener listener = progressListener;
+					if (listener != null) {
+						listener.progressChanged(total, totalBytes, completed, fileCount);
+					}
+				}
+				
+			};
+		}
+		
+	}
+	
+	/**
+	 * Outcome of a sync.
+	 */
+	public static class Result {
+		
+		private final List<File> uploaded = new ArrayList<File>();
+		private final Map<File, Exception> failed = new LinkedHashMap<File, Exception>();
+		private int unchanged;
+		private boolean interrupted;
+		
+		public List<File> getUploaded() {
+			return Collections.unmodifiableList(uploaded);
+		}
+		
+		/**
+		 * @return the files that failed to upload, with the exception each failed with
+		 */
+		public Map<File, Exception> getFailed() {
+			return Collections.unmodifiableMap(failed);
+		}
+		
+		public int getUnchangedCount() {
+			return unchanged;
+		}
+		
+		/**
+		 * @return true if the sync was interrupted before every file was uploaded
+		 */
+		public boolean isInterrupted() {
+			return interrupted;
+		}
+		
+	}
+	
+	public interface SyncProgressListener {
+		/**
+		 * Called from the upload threads as any file makes progress.
+		 */
+		public void progressChanged(long bytesUploaded, long totalBytes, int filesCompleted, int fileCount);
+	}
+	
+}
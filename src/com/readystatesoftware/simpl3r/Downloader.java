@@ -0,0 +1,632 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.readystatesoftware.simpl3r;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.ProgressEvent;
+import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectInputStream;
+import com.readystatesoftware.simpl3r.Uploader.UploadProgressListener;
+import com.readystatesoftware.simpl3r.utils.DigestUtils;
+import com.readystatesoftware.simpl3r.utils.SharedPreferencesCompat;
+
+/**
+ * Downloads an object in byte ranges, several at once if the concurrency 
+ * level allows. 
+ * 
+ * Ranges are written straight into a temporary file of the object's full 
+ * size next to the destination, which is renamed into place once every 
+ * range has arrived. Completed ranges are remembered, so an interrupted 
+ * download carries on where it left off as long as the object is unchanged. 
+ * 
+ * Each completed range is synced to storage and then appended to a 
+ * journal, one small record per range.
+ */
+public class Downloader {
+	
+	private static final long DEFAULT_RANGE_SIZE = 5 * 1024 * 1024;
+	private static final long MIN_RANGE_SIZE = 256 * 1024;
+	private static final int COPY_BUFFER_SIZE = 64 * 1024;
+	
+	private static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 250;
+	private static final long DEFAULT_PROGRESS_INTERVAL_BYTES = 64 * 1024;
+	
+	private static final String TAG = "Simpl3r";
+	private static final String JOURNAL_DIR = "simpl3r_download_journal";
+	// ranges were kept here by earlier versions
+	private static final String PREFS_NAME = "preferences_simpl3r_downloads";
+	private static final String PREFS_OBJECT = "_object";
+	private static final String PREFS_RANGES = "_ranges";
+	private static final String STATE_SEP = "~~";
+	private static final String TEMP_SUFFIX = ".download";
+	
+	private AmazonS3Client s3Client;
+	private String s3bucketName;
+	private String s3key;
+	private File file;
+	private File tempFile;
+	private ResumeStore resumeStore;
+	private SharedPreferences prefs;
+	private long rangeSize = DEFAULT_RANGE_SIZE;
+	private int concurrency = 1;
+	private RetryPolicy retryPolicy = new RetryPolicy();
+	private DownloadProgressListener progressListener;
+	private Executor progressExecutor;
+	private long progressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+	private long progressIntervalBytes = DEFAULT_PROGRESS_INTERVAL_BYTES;
+	private volatile boolean userInterrupted = false;
+	private volatile boolean userAborted = false;
+	private volatile boolean rangeFailed = false;
+	private final Object cancelLock = new Object();
+	// responses being read, aborted when the download is cancelled
+	private final Set<S3ObjectInputStream> openStreams = new HashSet<S3ObjectInputStream>();
+	
+	public Downloader(Context context, AmazonS3Client s3Client, String s3bucketName, String s3key, File file) {
+		this.s3Client = s3Client;
+		this.s3key = s3key;
+		this.s3bucketName = s3bucketName;
+		this.file = file;
+		this.tempFile = new File(file.getPath() + TEMP_SUFFIX);
+		resumeStore = new JournalResumeStore(context.getDir(JOURNAL_DIR, Context.MODE_PRIVATE));
+		prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+	}
+	
+	/**
+	 * Download the object to the file, blocking until it is complete. 
+	 * 
+	 * @return the downloaded file
+	 * @throws UploadIterruptedException if the download was interrupted or aborted
+	 */
+	public File start() {
+		
+		userInterrupted = false;
+		userAborted = false;
+		rangeFailed = false;
+		
+		ObjectMetadata metadata = s3Client.getObjectMetadata(s3bucketName, s3key);
+		final long contentLength = metadata.getContentLength();
+		final String eTag = metadata.getETag();
+		
+		// work out which ranges are still needed
+		Set<Integer> completedRanges = getCachedRanges(eTag, contentLength);
+		if (completedRanges == null) {
+			completedRanges = Collections.emptySet();
+			startCache(eTag, contentLength);
+		}
+		List<Range> pendingRanges = new ArrayList<Range>();
+		long bytesDownloaded = 0;
+		int rangeCount = (int) ((contentLength + rangeSize - 1) / rangeSize);
+		for (int k = 0; k < rangeCount; k++) {
+			long position = k * rangeSize;
+			long length = Math.min(rangeSize, contentLength - position);
+			if (completedRanges.contains(k)) {
+				bytesDownloaded += length;
+			} else {
+				pendingRanges.add(new Range(k, position, length));
+			}
+		}
+		if (!completedRanges.isEmpty()) {
+			Log.i(TAG, "resuming download with " + completedRanges.size() + " ranges, " + bytesDownloaded + " bytes");
+		}
+		
+		ProgressDispatcher dispatcher = new ProgressDispatcher(wrapProgressListener(), progressExecutor, 
+				progressIntervalMillis, progressIntervalBytes, contentLength, bytesDownloaded);
+		
+		RandomAccessFile raf = null;
+		try {
+			raf = new RandomAccessFile(tempFile, "rw");
+			// reserve the whole file up front, ranges land at their own offsets
+			raf.setLength(contentLength);
+			ActiveDownload download = new ActiveDownload(raf.getChannel(), eTag, dispatcher, bytesDownloaded);
+			
+			try {
+				downloadRanges(download, pendingRanges);
+			} catch (RuntimeException e) {
+				if (userAborted) {
+					closeQuietly(raf);
+					raf = null;
+					discardDownload();
+				}
+				throw e;
+			} finally {
+				resumeStore.flush(getCacheKey());
+			}
+			
+			raf.close();
+			raf = null;
+		} catch (IOException e) {
+			throw new AmazonClientException("Unable to write " + tempFile, e);
+		} finally {
+			closeQuietly(raf);
+		}
+		
+		if (file.exists() && !file.delete() || !tempFile.renameTo(file)) {
+			throw new AmazonClientException("Unable to move download to " + file);
+		}
+		clearCache();
+		dispatcher.completed(contentLength);
+		
+		Log.i(TAG, "download complete for " + s3key);
+		
+		return file;
+	}
+	
+	private void downloadRanges(final ActiveDownload download, List<Range> ranges) {
+		if (concurrency == 1 || ranges.size() <= 1) {
+			for (Range range : ranges) {
+				downloadRange(download, range);
+			}
+			return;
+		}
+		
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(concurrency, ranges.size()));
+		CompletionService<Range> completion = new ExecutorCompletionService<Range>(executor);
+		List<Future<Range>> submitted = new ArrayList<Future<Range>>();
+		boolean completed = false;
+		try {
+			for (final Range range : ranges) {
+				submitted.add(completion.submit(new Callable<Range>() {
+					public Range call() throws Exception {
+						downloadRange(download, range);
+						return range;
+					}
+				}));
+			}
+			for (int i = 0; i < submitted.size(); i++) {
+				try {
+					completion.take().get();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new UploadIterruptedException("Download thread interrupted", e);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					}
+					throw new AmazonClientException("Range download failed", cause);
+				}
+			}
+			completed = true;
+		} finally {
+			if (!completed) {
+				// stop the other ranges and drop queued ones
+				rangeFailed = true;
+				abortOpenStreams();
+				for (Future<Range> future : submitted) {
+					future.cancel(false);
+				}
+			}
+			// interrupting the range threads would close the file channel
+			executor.shutdown();
+			if (!completed) {
+				awaitQuietly(executor);
+			}
+		}
+	}
+	
+	private void downloadRange(ActiveDownload download, Range range) {
+		for (int attempt = 1; ; attempt++) {
+			checkCancelled();
+			
+			GetObjectRequest request = new GetObjectRequest(s3bucketName, s3key);
+			request.setRange(range.position + range.received, range.position + range.length - 1);
+			// fail rather than mix ranges of two versions of the object
+			request.setMatchingETagConstraints(Collections.singletonList(download.eTag));
+			
+			S3Object object;
+			try {
+				object = s3Client.getObject(request);
+			} catch (AmazonClientException e) {
+				handleFailure(e, range, attempt);
+				continue;
+			}
+			
+			S3ObjectInputStream in = null;
+			try {
+				if (object == null) {
+					clearCache();
+					throw new AmazonClientException(s3key + " changed while downloading");
+				}
+				in = object.getObjectContent();
+				if (!registerStream(in)) {
+					in.abort();
+					throw cancellation(null);
+				}
+				copy(in, download, range);
+				unregisterStream(in);
+				try {
+					in.close();
+				} catch (IOException e) {
+					// the range is already written
+				}
+				break;
+			} catch (IOException e) {
+				handleFailure(new AmazonClientException("Unable to read " + s3key, e), range, attempt);
+			} finally {
+				if (in != null && unregisterStream(in)) {
+					// closing would read the rest of the response first
+					try {
+						in.abort();
+					} catch (IOException e) {
+						// ignore
+					}
+				}
+			}
+		}
+		
+		cacheRange(download, range);
+		download.dispatcher.progressChanged(ProgressEvent.PART_COMPLETED_EVENT_CODE, download.bytesDownloaded.get());
+	}
+	
+	/**
+	 * Write the response into the range. Read failures are thrown as an 
+	 * IOException so the request can be retried, write failures are not.
+	 */
+	private void copy(S3ObjectInputStream in, ActiveDownload download, Range range) throws IOException {
+		byte[] buffer = new byte[COPY_BUFFER_SIZE];
+		int n;
+		while (range.received < range.length && (n = in.read(buffer)) != -1) {
+			checkCancelled();
+			n = (int) Math.min(n, range.length - range.received);
+			ByteBuffer src = ByteBuffer.wrap(buffer, 0, n);
+			long position = range.position + range.received;
+			try {
+				while (src.hasRemaining()) {
+					position += download.channel.write(src, position);
+				}
+			} catch (IOException e) {
+				throw new AmazonClientException("Unable to write " + tempFile, e);
+			}
+			range.received += n;
+			long downloaded = download.bytesDownloaded.addAndGet(n);
+			download.dispatcher.progressChanged(0, downloaded);
+		}
+		if (range.received < range.length) {
+			throw new IOException("Response ended early for range at " + range.position);
+		}
+	}
+	
+	/**
+	 * Rethrow a failed range attempt, or wait before the next one. Bytes 
+	 * already written are kept and the next attempt asks for the rest.
+	 */
+	private void handleFailure(AmazonClientException e, Range range, int attempt) {
+		if (isCancelled()) {
+			throw cancellation(e);
+		} else if (!retryPolicy.shouldRetry(e, attempt)) {
+			throw e;
+		}
+		long delay = retryPolicy.getDelayMillis(attempt);
+		Log.w(TAG, "range at " + range.position + " failed, retrying in " + delay + "ms", e);
+		long end = System.currentTimeMillis() + delay;
+		synchronized (cancelLock) {
+			long remaining = delay;
+			while (remaining > 0 && !isCancelled()) {
+				try {
+					cancelLock.wait(remaining);
+				} catch (InterruptedException ie) {
+					Thread.currentThread().interrupt();
+					throw new UploadIterruptedException("Interrupted while waiting to retry", ie);
+				}
+				remaining = end - System.currentTimeMillis();
+			}
+		}
+	}
+	
+	private boolean isCancelled() {
+		return userInterrupted || userAborted || rangeFailed;
+	}
+	
+	private void checkCancelled() {
+		if (isCancelled()) {
+			throw cancellation(null);
+		}
+	}
+	
+	private UploadIterruptedException cancellation(Throwable cause) {
+		String reason = userAborted ? "User aborted" 
+				: userInterrupted ? "User interrupted" : "Sibling range failed";
+		return new UploadIterruptedException(reason, cause);
+	}
+	
+	private boolean registerStream(S3ObjectInputStream in) {
+		synchronized (openStreams) {
+			if (isCancelled()) {
+				return false;
+			}
+			openStreams.add(in);
+			return true;
+		}
+	}
+	
+	private boolean unregisterStream(S3ObjectInputStream in) {
+		synchronized (openStreams) {
+			return openStreams.remove(in);
+		}
+	}
+	
+	/**
+	 * Abort the responses being read so blocked reads return at once. Only 
+	 * this download's requests are affected, the client stays usable.
+	 */
+	private void abortOpenStreams() {
+		List<S3ObjectInputStream> streams;
+		synchronized (openStreams) {
+			streams = new ArrayList<S3ObjectInputStream>(openStreams);
+			openStreams.clear();
+		}
+		for (S3ObjectInputStream in : streams) {
+			try {
+				in.abort();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	private void discardDownload() {
+		clearCache();
+		if (tempFile.exists() && !tempFile.delete()) {
+			Log.w(TAG, "unable to delete " + tempFile);
+		}
+	}
+	
+	private UploadProgressListener wrapProgressListener() {
+		final DownloadProgressListener listener = progressListener;
+		if (listener == null) {
+			return null;
+		}
+		return new UploadProgressListener() {
+			public void progressChanged(ProgressEvent progressEvent, long bytes, int percent) {
+				listener.progressChanged(progressEvent, bytes, percent);
+			}
+		};
+	}
+	
+	private static void closeQuietly(RandomAccessFile raf) {
+		if (raf != null) {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	private static void awaitQuietly(ExecutorService executor) {
+		try {
+			executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+	
+	// resume state is keyed by the temporary file
+	
+	private String getCacheKey() {
+		return tempFile.getAbsolutePath();
+	}
+	
+	private String getObjectState(String eTag, long contentLength) {
+		return eTag + STATE_SEP + contentLength + STATE_SEP + rangeSize;
+	}
+	
+	/**
+	 * @return the completed ranges, or null if there is nothing to resume
+	 */
+	private Set<Integer> getCachedRanges(String eTag, long contentLength) {
+		String state = resumeStore.getUploadId(getCacheKey());
+		if (state == null || !state.equals(getObjectState(eTag, contentLength)) 
+				|| tempFile.length() != contentLength) {
+			return null;
+		}
+		Set<Integer> ranges = new HashSet<Integer>();
+		for (PartRecord record : resumeStore.getParts(getCacheKey())) {
+			ranges.add(record.getPartNumber() - 1);
+		}
+		return ranges;
+	}
+	
+	private void startCache(String eTag, long contentLength) {
+		resumeStore.startUpload(new ResumeEntry(getCacheKey(), getObjectState(eTag, contentLength), 
+				s3bucketName, s3key, file.getAbsolutePath(), System.currentTimeMillis(), null, null));
+		clearLegacyCache();
+	}
+	
+	/**
+	 * Record a range as complete once its bytes have reached storage, so a 
+	 * crash never leaves a range marked done that was not written.
+	 */
+	private void cacheRange(ActiveDownload download, Range range) {
+		try {
+			download.channel.force(false);
+		} catch (IOException e) {
+			throw new AmazonClientException("Unable to write " + tempFile, e);
+		}
+		resumeStore.addPart(getCacheKey(), new PartRecord(range.index + 1, 
+				DigestUtils.unquote(download.eTag), range.position, range.length));
+	}
+	
+	private void clearCache() {
+		resumeStore.clear(getCacheKey());
+		clearLegacyCache();
+	}
+	
+	private void clearLegacyCache() {
+		if (prefs.getString(getCacheKey() + PREFS_OBJECT, null) != null) {
+			Editor edit = prefs.edit();
+			edit.remove(getCacheKey() + PREFS_OBJECT);
+			edit.remove(getCacheKey() + PREFS_RANGES);
+			SharedPreferencesCompat.apply(edit);
+		}
+	}
+	
+	/**
+	 * Stop the download, keeping what has arrived so it can be resumed.
+	 */
+	public void interrupt() {
+		userInterrupted = true;
+		wakeWaiters();
+	}
+	
+	/**
+	 * Stop the download and delete what has arrived.
+	 */
+	public void abort() {
+		userAborted = true;
+		wakeWaiters();
+	}
+	
+	private void wakeWaiters() {
+		synchronized (cancelLock) {
+			cancelLock.notifyAll();
+		}
+		abortOpenStreams();
+	}
+	
+	public long getRangeSize() {
+		return rangeSize;
+	}
+	
+	/**
+	 * Changing the range size discards any progress saved for this download.
+	 * 
+	 * @param rangeSize bytes fetched per request, at least 256KB
+	 */
+	public void setRangeSize(long rangeSize) {
+		if (rangeSize < MIN_RANGE_SIZE) {
+			throw new IllegalStateException("Range size is less than " + MIN_RANGE_SIZE);
+		} else {
+			this.rangeSize = rangeSize;
+		}
+	}
+	
+	public int getConcurrency() {
+		return concurrency;
+	}
+	
+	/**
+	 * @param concurrency number of ranges fetched at once
+	 */
+	public void setConcurrency(int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalStateException("Concurrency must be at least 1");
+		} else {
+			this.concurrency = concurrency;
+		}
+	}
+	
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+	public DownloadProgressListener getProgressListener() {
+		return progressListener;
+	}
+
+	public void setProgressListener(DownloadProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+	
+	/**
+	 * @see Uploader#setProgressInterval(long, long)
+	 */
+	public void setProgressInterval(long intervalMillis, long intervalBytes) {
+		this.progressIntervalMillis = intervalMillis;
+		this.progressIntervalBytes = intervalBytes;
+	}
+	
+	/**
+	 * @see Uploader#setProgressExecutor(Executor)
+	 */
+	public void setProgressExecutor(Executor progressExecutor) {
+		this.progressExecutor = progressExecutor;
+	}
+	
+	/**
+	 * A byte range of the object and how much of it has been written.
+	 */
+	private static class Range {
+		
+		final int index;
+		final long position;
+		final long length;
+		long received = 0;
+		
+		Range(int index, long position, long length) {
+			this.index = index;
+			this.position = position;
+			this.length = length;
+		}
+		
+	}
+	
+	/**
+	 * State shared by every range of a download.
+	 */
+	private static class ActiveDownload {
+		
+		final FileChannel channel;
+		final String eTag;
+		final ProgressDispatcher dispatcher;
+		final AtomicLong bytesDownloaded;
+		
+		ActiveDownload(FileChannel channel, String eTag, ProgressDispatcher dispatcher, long bytesDownloaded) {
+			this.channel = channel;
+			this.eTag = eTag;
+			this.dispatcher = dispatcher;
+			this.bytesDownloaded = new AtomicLong(bytesDownloaded);
+		}
+		
+	}
+	
+	public interface DownloadProgressListener {
+		public void progressChanged(ProgressEvent progressEvent, long bytesDownloaded, int percentDownloaded);
+	}
+	
+}
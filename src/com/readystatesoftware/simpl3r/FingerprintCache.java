@@ -0,0 +1,75 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.readystatesoftware.simpl3r;
+
+import java.io.File;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+import com.readystatesoftware.simpl3r.utils.SharedPreferencesCompat;
+
+/**
+ * Remembers the ETag computed for a file so it is not read again to check 
+ * for an identical object on S3. 
+ * 
+ * Entries are keyed by the file's path and only used while its size and 
+ * modification time are unchanged. The ETag of a multipart object depends 
+ * on its part size, so that is recorded as well, 0 for a single request.
+ */
+public class FingerprintCache {
+
+	private static final String PREFS_SEP = "~~";
+	
+	private final SharedPreferences prefs;
+	
+	public FingerprintCache(SharedPreferences prefs) {
+		this.prefs = prefs;
+	}
+	
+	/**
+	 * @return the cached ETag, or null if there is none for the file as it is now
+	 */
+	public synchronized String get(File file, long partSize) {
+		String entry = prefs.getString(file.getAbsolutePath(), null);
+		if (entry == null) {
+			return null;
+		}
+		String[] fields = entry.split(PREFS_SEP);
+		if (fields.length != 4 
+				|| Long.parseLong(fields[0]) != file.length()
+				|| Long.parseLong(fields[1]) != file.lastModified()
+				|| Long.parseLong(fields[2]) != partSize) {
+			return null;
+		}
+		return fields[3];
+	}
+	
+	/**
+	 * Cache an ETag for a file. The size and modification time should be read 
+	 * before the file is, so a change made while reading it is noticed.
+	 */
+	public synchronized void put(File file, long size, long lastModified, long partSize, String etag) {
+		String entry = size + PREFS_SEP + lastModified + PREFS_SEP + partSize + PREFS_SEP + etag;
+		Editor edit = prefs.edit().putString(file.getAbsolutePath(), entry);
+		SharedPreferencesCompat.apply(edit);
+	}
+	
+	public synchronized void remove(File file) {
+		Editor edit = prefs.edit().remove(file.getAbsolutePath());
+		SharedPreferencesCompat.apply(edit);
+	}
+	
+}
@@ -0,0 +1,425 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.readystatesoftware.simpl3r.utils.DigestUtils;
+
+/**
+ * Resume store that keeps one append-only journal file per upload. 
+ * 
+ * The journal starts with a small header holding the upload id and where 
+ * the upload is going, followed by one fixed size record per completed part 
+ * holding its ETag and source range. Appending a part costs a single 
+ * small write, and the file is synced to storage every few records rather 
+ * than on every part. A torn record at the end of the journal, left by a 
+ * crash mid-write, is ignored on replay.
+ * 
+ * Journals from older versions do not name their key, so they are not 
+ * listed by {@link #getEntries()} until they are next resumed.
+ */
+public class JournalResumeStore implements ResumeStore {
+
+	private static final String TAG = "Simpl3r";
+	private static final String JOURNAL_DIR = "simpl3r_journal";
+	private static final String JOURNAL_SUFFIX = ".journal";
+	
+	private static final int MAGIC = 0x53334a4c;
+	private static final short VERSION = 5;
+	private static final short VERSION_4 = 4;
+	private static final short VERSION_3 = 3;
+	private static final short VERSION_2 = 2;
+	private static final short VERSION_1 = 1;
+	private static final int HEADER_FIXED_SIZE = 8;
+	private static final int RECORD_SIZE = 64;
+	private static final int VERSION_1_RECORD_SIZE = 48;
+	private static final int MAX_ETAG_LENGTH = 43;
+	private static final int DEFAULT_SYNC_INTERVAL = 16;
+	private static final Charset UTF8 = Charset.forName("UTF-8");
+	
+	private final File directory;
+	private final Map<String, Journal> openJournals = new HashMap<String, Journal>();
+	private int syncInterval = DEFAULT_SYNC_INTERVAL;
+	
+	public JournalResumeStore(Context context) {
+		this(context.getDir(JOURNAL_DIR, Context.MODE_PRIVATE));
+	}
+	
+	public JournalResumeStore(File directory) {
+		this.directory = directory;
+		directory.mkdirs();
+	}
+	
+	public synchronized String getUploadId(String key) {
+		Journal journal = openJournals.get(key);
+		if (journal != null) {
+			return journal.uploadId;
+		}
+		ByteBuffer buffer = readJournal(key);
+		return buffer == null ? null : readHeader(buffer);
+	}
+
+	public synchronized ResumeEntry getEntry(String key) {
+		ByteBuffer buffer = readJournal(key);
+		String uploadId = buffer == null ? null : readHeader(buffer);
+		if (uploadId == null) {
+			return null;
+		}
+		buffer.rewind();
+		ResumeEntry entry = readEntry(buffer, getJournalFile(key).lastModified());
+		return entry != null ? entry : new ResumeEntry(key, uploadId, null, null, null, 0, null, null);
+	}
+
+	public synchronized List<PartRecord> getParts(String key) {
+		ByteBuffer buffer = readJournal(key);
+		if (buffer == null || readHeader(buffer) == null) {
+			return new ArrayList<PartRecord>();
+		}
+		return readRecords(buffer);
+	}
+
+	public synchronized void startUpload(ResumeEntry entry) {
+		String key = entry.getKey();
+		close(key);
+		byte[] id = entry.getUploadId().getBytes(UTF8);
+		byte[][] fields = new byte[][] { key.getBytes(UTF8), getBytes(entry.getBucketName()),
+				getBytes(entry.getS3Key()), getBytes(entry.getFilePath()), 
+				getBytes(entry.getFingerprint()), getBytes(entry.getIv()) };
+		int size = HEADER_FIXED_SIZE + id.length + 8;
+		for (byte[] field : fields) {
+			size += 2 + field.length;
+		}
+		ByteBuffer header = ByteBuffer.allocate(size);
+		header.putInt(MAGIC).putShort(VERSION).putShort((short) id.length).put(id);
+		header.putLong(entry.getUpdated());
+		for (byte[] field : fields) {
+			header.putShort((short) field.length).put(field);
+		}
+		try {
+			FileOutputStream out = new FileOutputStream(getJournalFile(key), false);
+			out.write(header.array());
+			out.getFD().sync();
+			openJournals.put(key, new Journal(out, entry.getUploadId()));
+		} catch (IOException e) {
+			Log.w(TAG, "unable to create journal for " + key, e);
+		}
+	}
+
+	public synchronized void addPart(String key, PartRecord part) {
+		Journal journal = openJournals.get(key);
+		if (journal == null) {
+			journal = reopen(key);
+			if (journal == null) {
+				return;
+			}
+		}
+		
+		byte[] etag = part.getETag().getBytes(UTF8);
+		if (etag.length > MAX_ETAG_LENGTH) {
+			Log.w(TAG, "etag too long to journal for part " + part.getPartNumber());
+			return;
+		}
+		
+		ByteBuffer record = journal.record;
+		record.clear();
+		record.putInt(part.getPartNumber()).put((byte) etag.length).put(etag);
+		while (record.position() < 5 + MAX_ETAG_LENGTH) {
+			record.put((byte) 0);
+		}
+		record.putLong(part.getPosition()).putLong(part.getLength());
+		
+		try {
+			journal.out.write(record.array());
+			if (++journal.unsynced >= syncInterval) {
+				journal.out.getFD().sync();
+				journal.unsynced = 0;
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "unable to journal part " + part.getPartNumber() + " for " + key, e);
+			close(key);
+		}
+	}
+	
+	public synchronized void flush(String key) {
+		close(key);
+	}
+
+	public synchronized void clear(String key) {
+		close(key);
+		getJournalFile(key).delete();
+	}
+	
+	public synchronized void clear(Collection<String> keys) {
+		for (String key : keys) {
+			clear(key);
+		}
+	}
+	
+	public synchronized List<ResumeEntry> getEntries() {
+		List<ResumeEntry> result = new ArrayList<ResumeEntry>();
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return result;
+		}
+		for (File file : files) {
+			if (!file.getName().endsWith(JOURNAL_SUFFIX)) {
+				continue;
+			}
+			ByteBuffer buffer = readFile(file);
+			ResumeEntry entry = buffer == null ? null : readEntry(buffer, file.lastModified());
+			if (entry != null) {
+				result.add(entry);
+			}
+		}
+		return result;
+	}
+	
+	public int getSyncInterval() {
+		return syncInterval;
+	}
+	
+	/**
+	 * Set how many part records may be written between syncs to storage. 
+	 * 
+	 * Records that are not yet synced may be lost if the device loses power, 
+	 * in which case those parts are uploaded again on resume.
+	 * 
+	 * @param syncInterval number of records per sync, 1 syncs every record
+	 */
+	public void setSyncInterval(int syncInterval) {
+		if (syncInterval < 1) {
+			throw new IllegalStateException("Sync interval must be at least 1");
+		} else {
+			this.syncInterval = syncInterval;
+		}
+	}
+	
+	private Journal reopen(String key) {
+		ByteBuffer buffer = readJournal(key);
+		String uploadId = buffer == null ? null : readHeader(buffer);
+		if (uploadId == null) {
+			return null;
+		}
+		if (buffer.getShort(4) != VERSION) {
+			// rewrite older journals in the current format before appending to them
+			List<PartRecord> parts = readRecords(buffer);
+			buffer.rewind();
+			ResumeEntry entry = readEntry(buffer, System.currentTimeMillis());
+			startUpload(entry != null ? entry 
+					: new ResumeEntry(key, uploadId, null, null, null, System.currentTimeMillis(), null, null));
+			for (PartRecord part : parts) {
+				addPart(key, part);
+			}
+			return openJournals.get(key);
+		}
+		try {
+			// drop any torn record at the end before appending
+			long validLength = buffer.position() + (buffer.remaining() / RECORD_SIZE) * RECORD_SIZE;
+			RandomAccessFile raf = new RandomAccessFile(getJournalFile(key), "rw");
+			raf.setLength(validLength);
+			raf.close();
+			
+			Journal journal = new Journal(new FileOutputStream(getJournalFile(key), true), uploadId);
+			openJournals.put(key, journal);
+			return journal;
+		} catch (IOException e) {
+			Log.w(TAG, "unable to reopen journal for " + key, e);
+			return null;
+		}
+	}
+	
+	private void close(String key) {
+		Journal journal = openJournals.remove(key);
+		if (journal != null) {
+			try {
+				journal.out.getFD().sync();
+			} catch (IOException e) {
+				Log.w(TAG, "unable to sync journal for " + key, e);
+			}
+			try {
+				journal.out.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+	}
+	
+	private ByteBuffer readJournal(String key) {
+		File file = getJournalFile(key);
+		return file.exists() ? readFile(file) : null;
+	}
+	
+	private ByteBuffer readFile(File file) {
+		try {
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				byte[] bytes = new byte[(int) raf.length()];
+				raf.readFully(bytes);
+				return ByteBuffer.wrap(bytes);
+			} finally {
+				raf.close();
+			}
+		} catch (IOException e) {
+			Log.w(TAG, "unable to read journal " + file.getName(), e);
+			return null;
+		}
+	}
+	
+	/**
+	 * Reads the records following the header. Records from version 1 
+	 * journals have no source range.
+	 */
+	private List<PartRecord> readRecords(ByteBuffer buffer) {
+		List<PartRecord> result = new ArrayList<PartRecord>();
+		boolean hasRange = buffer.getShort(4) != VERSION_1;
+		int recordSize = hasRange ? RECORD_SIZE : VERSION_1_RECORD_SIZE;
+		byte[] etag = new byte[MAX_ETAG_LENGTH];
+		while (buffer.remaining() >= recordSize) {
+			int recordStart = buffer.position();
+			int partNumber = buffer.getInt();
+			int etagLength = buffer.get() & 0xFF;
+			if (partNumber > 0 && etagLength > 0 && etagLength <= MAX_ETAG_LENGTH) {
+				buffer.get(etag, 0, etagLength);
+				long position = -1;
+				long length = -1;
+				if (hasRange) {
+					buffer.position(recordStart + 5 + MAX_ETAG_LENGTH);
+					position = buffer.getLong();
+					length = buffer.getLong();
+				}
+				result.add(new PartRecord(partNumber, new String(etag, 0, etagLength, UTF8), position, length));
+			}
+			buffer.position(recordStart + recordSize);
+		}
+		return result;
+	}
+	
+	/**
+	 * Reads the journal header, leaving the buffer positioned at the first record.
+	 * 
+	 * @return the upload id, or null if the journal is not valid
+	 */
+	private String readHeader(ByteBuffer buffer) {
+		if (buffer.remaining() < HEADER_FIXED_SIZE || buffer.getInt() != MAGIC) {
+			return null;
+		}
+		short version = buffer.getShort();
+		if (version < VERSION_1 || version > VERSION) {
+			return null;
+		}
+		String uploadId = readString(buffer);
+		if (uploadId == null || (version >= VERSION_3 && readTarget(buffer, version) == null)) {
+			return null;
+		}
+		return uploadId;
+	}
+	
+	/**
+	 * Reads the header of a journal that names its upload.
+	 * 
+	 * @param lastModified when the journal was last written, which counts as 
+	 * progress on the upload
+	 * @return the entry, or null if the journal does not name its upload 
+	 */
+	private ResumeEntry readEntry(ByteBuffer buffer, long lastModified) {
+		String uploadId = readHeader(buffer);
+		short version = buffer.getShort(4);
+		if (uploadId == null || version < VERSION_3) {
+			return null;
+		}
+		int targetStart = HEADER_FIXED_SIZE + (buffer.getShort(6) & 0xFFFF);
+		buffer.position(targetStart);
+		String[] target = readTarget(buffer, version);
+		if (target[0] == null) {
+			return null;
+		}
+		long updated = Math.max(buffer.getLong(targetStart), lastModified);
+		return new ResumeEntry(target[0], uploadId, target[1], target[2], target[3], updated, target[4], target[5]);
+	}
+	
+	/**
+	 * Reads the time, key, bucket, object key, file path, fingerprint and IV 
+	 * following the upload id, with empty fields read as null. Version 3 
+	 * journals have no fingerprint and version 4 journals have no IV.
+	 */
+	private String[] readTarget(ByteBuffer buffer, short version) {
+		if (buffer.remaining() < 8) {
+			return null;
+		}
+		buffer.getLong();
+		String[] target = new String[6];
+		int fields = version == VERSION_3 ? 4 : version == VERSION_4 ? 5 : 6;
+		for (int i = 0; i < fields; i++) {
+			target[i] = readString(buffer);
+			if (target[i] == null) {
+				return null;
+			} else if (target[i].length() == 0) {
+				target[i] = null;
+			}
+		}
+		return target;
+	}
+	
+	private String readString(ByteBuffer buffer) {
+		if (buffer.remaining() < 2) {
+			return null;
+		}
+		int length = buffer.getShort() & 0xFFFF;
+		if (buffer.remaining() < length) {
+			return null;
+		}
+		byte[] bytes = new byte[length];
+		buffer.get(bytes);
+		return new String(bytes, UTF8);
+	}
+	
+	private static byte[] getBytes(String value) {
+		return value == null ? new byte[0] : value.getBytes(UTF8);
+	}
+	
+	private File getJournalFile(String key) {
+		return new File(directory, DigestUtils.md5Hex(key) + JOURNAL_SUFFIX);
+	}
+	
+	private static class Journal {
+		
+		final FileOutputStream out;
+		final String uploadId;
+		final ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+		int unsynced = 0;
+		
+		Journal(FileOutputStream out, String uploadId) {
+			this.out = out;
+			this.uploadId = uploadId;
+		}
+		
+	}
+
+}
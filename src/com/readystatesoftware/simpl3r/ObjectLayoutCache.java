@@ -0,0 +1,149 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.readystatesoftware.simpl3r;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+import com.readystatesoftware.simpl3r.utils.SharedPreferencesCompat;
+
+/**
+ * Remembers how each completed object was split into parts, so an append 
+ * upload can recompute the object's ETag from the start of the local file 
+ * and confirm the object is still a prefix of it, and an upload that skips 
+ * identical objects can match one uploaded with variable part sizes. 
+ * 
+ * Part lengths are stored as runs, so a file uploaded in equal parts takes 
+ * only a few characters however many parts it has.
+ */
+public class ObjectLayoutCache {
+
+	private static final String PREFS_SEP = "~~";
+	private static final String RUN_SEP = ",";
+	private static final String COUNT_SEP = "*";
+	
+	private final SharedPreferences prefs;
+	
+	public ObjectLayoutCache(SharedPreferences prefs) {
+		this.prefs = prefs;
+	}
+	
+	/**
+	 * @return the recorded layout of the object, or null if there is none
+	 */
+	public synchronized Layout get(String s3bucketName, String s3key) {
+		String entry = prefs.getString(getKey(s3bucketName, s3key), null);
+		if (entry == null) {
+			return null;
+		}
+		String[] fields = entry.split(PREFS_SEP);
+		if (fields.length != 3) {
+			return null;
+		}
+		List<Long> lengths = new ArrayList<Long>();
+		if (fields[2].length() > 0) {
+			for (String run : fields[2].split(RUN_SEP)) {
+				int sep = run.indexOf(COUNT_SEP);
+				long length = Long.parseLong(sep < 0 ? run : run.substring(0, sep));
+				int count = sep < 0 ? 1 : Integer.parseInt(run.substring(sep + 1));
+				for (int i = 0; i < count; i++) {
+					lengths.add(length);
+				}
+			}
+		}
+		long[] partLengths = new long[lengths.size()];
+		for (int i = 0; i < partLengths.length; i++) {
+			partLengths[i] = lengths.get(i);
+		}
+		return new Layout(fields[0], "1".equals(fields[1]), partLengths);
+	}
+	
+	public synchronized void put(String s3bucketName, String s3key, Layout layout) {
+		StringBuilder runs = new StringBuilder();
+		long[] lengths = layout.getPartLengths();
+		for (int i = 0; i < lengths.length; ) {
+			int count = 1;
+			while (i + count < lengths.length && lengths[i + count] == lengths[i]) {
+				count++;
+			}
+			if (runs.length() > 0) {
+				runs.append(RUN_SEP);
+			}
+			runs.append(lengths[i]);
+			if (count > 1) {
+				runs.append(COUNT_SEP).append(count);
+			}
+			i += count;
+		}
+		String entry = layout.getETag() + PREFS_SEP + (layout.isMultipart() ? "1" : "0") + PREFS_SEP + runs;
+		Editor edit = prefs.edit().putString(getKey(s3bucketName, s3key), entry);
+		SharedPreferencesCompat.apply(edit);
+	}
+	
+	public synchronized void remove(String s3bucketName, String s3key) {
+		Editor edit = prefs.edit().remove(getKey(s3bucketName, s3key));
+		SharedPreferencesCompat.apply(edit);
+	}
+	
+	private String getKey(String s3bucketName, String s3key) {
+		return s3bucketName + "/" + s3key;
+	}
+	
+	/**
+	 * The ETag of a completed object and the lengths of the parts it was 
+	 * assembled from, in part number order.
+	 */
+	public static class Layout {
+		
+		private final String eTag;
+		private final boolean multipart;
+		private final long[] partLengths;
+		
+		public Layout(String eTag, boolean multipart, long[] partLengths) {
+			this.eTag = eTag;
+			this.multipart = multipart;
+			this.partLengths = partLengths;
+		}
+		
+		public String getETag() {
+			return eTag;
+		}
+		
+		/**
+		 * @return false if the object was sent in a single request, so its 
+		 * ETag is the plain MD5 of its content
+		 */
+		public boolean isMultipart() {
+			return multipart;
+		}
+		
+		public long[] getPartLengths() {
+			return partLengths;
+		}
+		
+		public long getLength() {
+			long length = 0;
+			for (long partLength : partLengths) {
+				length += partLength;
+			}
+			return length;
+		}
+		
+	}
+	
+}
@@ -0,0 +1,156 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+
+package com.readystatesoftware.simpl3r;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
+
+/**
+ * Cleans up multipart uploads that will never be resumed. 
+ * 
+ * An upload is stale once it has made no progress for longer than the TTL, 
+ * or its file no longer exists. Collecting aborts each stale upload on S3, 
+ * so its parts stop accruing storage, then discards the local state of 
+ * every aborted upload in one batch. Uploads running in this process are 
+ * left alone, and an upload that cannot be aborted because of a network 
+ * error is kept for the next run, so it is safe to collect periodically 
+ * from a background thread.
+ */
+public class OrphanedUploadCollector {
+
+	private static final String TAG = "Simpl3r";
+	private static final long DEFAULT_TTL_MILLIS = 7L * 24 * 60 * 60 * 1000;
+	
+	private final AmazonS3Client s3Client;
+	private final ResumeStore resumeStore;
+	private long ttlMillis = DEFAULT_TTL_MILLIS;
+	private String defaultBucketName;
+	
+	/**
+	 * Collect from the resume store uploaders use by default.
+	 */
+	public OrphanedUploadCollector(Context context, AmazonS3Client s3Client) {
+		this(s3Client, new SharedPreferencesResumeStore(
+				context.getSharedPreferences(Uploader.PREFS_NAME, Context.MODE_PRIVATE)));
+	}
+	
+	public OrphanedUploadCollector(AmazonS3Client s3Client, ResumeStore resumeStore) {
+		this.s3Client = s3Client;
+		this.resumeStore = resumeStore;
+	}
+	
+	/**
+	 * @return the uploads in the store that are stale now
+	 */
+	public synchronized List<ResumeEntry> getStaleEntries() {
+		List<ResumeEntry> stale = new ArrayList<ResumeEntry>();
+		long now = System.currentTimeMillis();
+		for (ResumeEntry entry : resumeStore.getEntries()) {
+			if (Uploader.isRunning(entry.getKey())) {
+				continue;
+			}
+			boolean expired = now - entry.getUpdated() > ttlMillis;
+			boolean missing = entry.getFilePath() != null && !new File(entry.getFilePath()).exists();
+			if (expired || missing) {
+				stale.add(entry);
+			}
+		}
+		return stale;
+	}
+	
+	/**
+	 * Abort the stale uploads and discard their local state. This makes 
+	 * network requests so do not call it on the main thread.
+	 * 
+	 * @return the uploads that were discarded
+	 */
+	public synchronized List<ResumeEntry> collect() {
+		List<ResumeEntry> collected = new ArrayList<ResumeEntry>();
+		List<String> keys = new ArrayList<String>();
+		for (ResumeEntry entry : getStaleEntries()) {
+			try {
+				abort(entry);
+			} catch (AmazonServiceException e) {
+				if (e.getStatusCode() != 404) {
+					Log.w(TAG, "unable to abort stale upload of " + entry.getKey(), e);
+					continue;
+				}
+				// already completed, aborted or expired on S3
+			} catch (AmazonClientException e) {
+				// the rest would most likely fail the same way
+				Log.w(TAG, "unable to abort stale uploads", e);
+				break;
+			}
+			collected.add(entry);
+			keys.add(entry.getKey());
+		}
+		if (!keys.isEmpty()) {
+			resumeStore.clear(keys);
+			Log.i(TAG, "discarded " + keys.size() + " stale uploads");
+		}
+		return collected;
+	}
+	
+	private void abort(ResumeEntry entry) {
+		String bucketName = entry.getBucketName() != null ? entry.getBucketName() : defaultBucketName;
+		String s3key = entry.getS3Key() != null ? entry.getS3Key() : Uploader.getS3Key(entry.getKey());
+		if (bucketName == null) {
+			Log.w(TAG, "bucket of stale upload " + entry.getKey() + " unknown, discarding local state only");
+			return;
+		}
+		s3Client.abortMultipartUpload(new AbortMultipartUploadRequest(bucketName, s3key, entry.getUploadId()));
+	}
+	
+	public long getTtlMillis() {
+		return ttlMillis;
+	}
+	
+	/**
+	 * Set how long an upload may go without progress before it is stale. 
+	 * It should be longer than any upload is expected to stay paused.
+	 */
+	public void setTtlMillis(long ttlMillis) {
+		if (ttlMillis < 0) {
+			throw new IllegalStateException("TTL must not be negative");
+		} else {
+			this.ttlMillis = ttlMillis;
+		}
+	}
+	
+	public String getDefaultBucketName() {
+		return defaultBucketName;
+	}
+	
+	/**
+	 * Set the bucket of uploads recorded by older versions of the library, 
+	 * which did not store it. Without one, those uploads are only discarded 
+	 * locally and are left for the bucket's lifecycle rules to clean up.
+	 */
+	public void setDefaultBucketName(String defaultBucketName) {
+		this.defaultBucketName = defaultBucketName;
+	}
+	
+}
@@ -0,0 +1,71 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+/**
+ * An uploaded part and the range of the source it was read from. 
+ * 
+ * The range is needed to resume uploads whose parts do not map to fixed 
+ * offsets, such as compressed uploads. It is -1 for parts recorded by 
+ * older versions of the library.
+ */
+public class PartRecord {
+
+	private final int partNumber;
+	private final String eTag;
+	private final long position;
+	private final long length;
+	
+	public PartRecord(int partNumber, String eTag, long position, long length) {
+		this.partNumber = partNumber;
+		this.eTag = eTag;
+		this.position = position;
+		this.length = length;
+	}
+	
+	public int getPartNumber() {
+		return partNumber;
+	}
+	
+	public String getETag() {
+		return eTag;
+	}
+	
+	/**
+	 * @return the offset in the source of the part's first byte, or -1 if not known
+	 */
+	public long getPosition() {
+		return position;
+	}
+	
+	/**
+	 * @return the number of source bytes in the part, or -1 if not known
+	 */
+	public long getLength() {
+		return length;
+	}
+	
+	public boolean hasRange() {
+		return position >= 0 && length >= 0;
+	}
+	
+	public PartETag getPartETag() {
+		return new PartETag(partNumber, eTag);
+	}
+	
+}
@@ -0,0 +1,132 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.readystatesoftware.simpl3r;
+
+/**
+ * Picks the size of upcoming parts from the throughput and failure rate of 
+ * the parts already sent. 
+ * 
+ * Parts are sized to take about the target time at the measured per part 
+ * throughput, so fast links make fewer round trips and records, and shrunk 
+ * in proportion to the recent failure rate, so a dropped part on a poor link 
+ * wastes less. Sizes start at the minimum, at most double from one part to 
+ * the next, halve after a failure and are kept within the given bounds. 
+ * Share one sizer between uploaders on the same network to pool the 
+ * measurements.
+ */
+public class PartSizer {
+	
+	private static final long MB = 1024 * 1024;
+	private static final long DEFAULT_MIN_PART_SIZE = 5 * MB;
+	private static final long DEFAULT_MAX_PART_SIZE = 64 * MB;
+	private static final long DEFAULT_TARGET_MILLIS = 10000;
+	// weight of the newest sample in the moving averages
+	private static final double SMOOTHING = 0.3;
+	
+	private final long minPartSize;
+	private final long maxPartSize;
+	private final long targetMillis;
+	
+	private double throughput = 0;
+	private double failureRate = 0;
+	private long partSize;
+	
+	public PartSizer() {
+		this(DEFAULT_MIN_PART_SIZE, DEFAULT_MAX_PART_SIZE, DEFAULT_TARGET_MILLIS);
+	}
+	
+	/**
+	 * @param minPartSize smallest part, at least the S3 minimum of 5MB
+	 * @param maxPartSize largest part, at most the S3 maximum of 5GB
+	 * @param targetMillis how long a part should take to send
+	 */
+	public PartSizer(long minPartSize, long maxPartSize, long targetMillis) {
+		if (minPartSize < DEFAULT_MIN_PART_SIZE) {
+			throw new IllegalStateException("Part size is less than S3 minimum of " + DEFAULT_MIN_PART_SIZE);
+		}
+		if (maxPartSize < minPartSize || maxPartSize > 5L * 1024 * MB) {
+			throw new IllegalStateException("Max part size must be between the min part size and 5GB");
+		}
+		if (targetMillis <= 0) {
+			throw new IllegalStateException("Target time must be positive");
+		}
+		this.minPartSize = minPartSize;
+		this.maxPartSize = maxPartSize;
+		this.targetMillis = targetMillis;
+		this.partSize = minPartSize;
+	}
+	
+	/**
+	 * @return the size for the next part, before S3's part count limit is applied
+	 */
+	public synchronized long getPartSize() {
+		return partSize;
+	}
+	
+	/**
+	 * Called when a part has been sent.
+	 * 
+	 * @param bytes size of the part
+	 * @param latencyNanos time taken by the successful attempt
+	 */
+	public synchronized void partCompleted(long bytes, long latencyNanos) {
+		if (latencyNanos <= 0) {
+			return;
+		}
+		double sample = bytes * 1000000000.0 / latencyNanos;
+		throughput = throughput == 0 ? sample : throughput + SMOOTHING * (sample - throughput);
+		failureRate -= SMOOTHING * failureRate;
+		
+		long ideal = (long) (throughput * targetMillis / 1000 * (1 - failureRate));
+		setPartSize(Math.min(ideal, partSize * 2));
+	}
+	
+	/**
+	 * Called when a part attempt has failed.
+	 */
+	public synchronized void partFailed() {
+		failureRate += SMOOTHING * (1 - failureRate);
+		setPartSize(partSize / 2);
+	}
+	
+	private void setPartSize(long size) {
+		// whole megabytes keep the sizes readable in logs and resume records
+		size = size / MB * MB;
+		partSize = Math.max(minPartSize, Math.min(maxPartSize, size));
+	}
+	
+	/**
+	 * @return the smoothed per part throughput in bytes per second, or 0 before the first part
+	 */
+	public synchronized long getThroughput() {
+		return (long) throughput;
+	}
+	
+	/**
+	 * @return the smoothed fraction of part attempts that failed
+	 */
+	public synchronized double getFailureRate() {
+		return failureRate;
+	}
+	
+	public long getMinPartSize() {
+		return minPartSize;
+	}
+	
+	public long getMaxPartSize() {
+		return maxPartSize;
+	}
+	
+}
@@ -0,0 +1,167 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.amazonaws.services.s3.model.ProgressEvent;
+import com.readystatesoftware.simpl3r.Uploader.UploadProgressListener;
+
+/**
+ * Coalesces the stream of SDK progress events into occasional callbacks. 
+ * 
+ * Regular progress is delivered at most once per interval, and only once at 
+ * least the minimum number of bytes has moved. Part boundaries and completion 
+ * are always delivered, as are failed parts whose bytes have been taken back 
+ * off the total. The total only goes down for failed parts, callbacks 
+ * overtaken by a later total on the executor are dropped. The event passed 
+ * to the listener carries the bytes transferred since the previous callback.
+ */
+class ProgressDispatcher {
+
+	private final UploadProgressListener listener;
+	private final Executor executor;
+	private final long minIntervalNanos;
+	private final long minBytes;
+	private volatile long contentLength;
+	
+	private final AtomicLong lastDispatchTime;
+	private volatile long lastDispatchBytes;
+	
+	// latest coalesced progress waiting on the executor
+	private final AtomicBoolean scheduled = new AtomicBoolean();
+	private volatile long latestBytes;
+	private final Runnable dispatchLatest = new Runnable() {
+		public void run() {
+			scheduled.set(false);
+			deliver(0, latestBytes);
+		}
+	};
+	
+	private final Object deliverLock = new Object();
+	private long deliveredBytes;
+	
+	ProgressDispatcher(UploadProgressListener listener, Executor executor, 
+			long minIntervalMillis, long minBytes, long contentLength, long initialBytes) {
+		this.listener = listener;
+		this.executor = executor;
+		this.minIntervalNanos = minIntervalMillis * 1000000L;
+		this.minBytes = minBytes;
+		this.contentLength = contentLength;
+		this.lastDispatchTime = new AtomicLong(System.nanoTime() - minIntervalNanos);
+		this.lastDispatchBytes = initialBytes;
+		this.deliveredBytes = initialBytes;
+	}
+	
+	/**
+	 * Set the total once a source of unknown length reaches its end.
+	 */
+	void setContentLength(long contentLength) {
+		this.contentLength = contentLength;
+	}
+	
+	/**
+	 * Called for every SDK progress event with the running byte total.
+	 */
+	void progressChanged(int eventCode, long totalBytes) {
+		if (listener == null) {
+			return;
+		}
+		if (eventCode == ProgressEvent.PART_COMPLETED_EVENT_CODE) {
+			dispatchNow(eventCode, totalBytes);
+			return;
+		}
+		
+		long now = System.nanoTime();
+		long last = lastDispatchTime.get();
+		if (now - last < minIntervalNanos || totalBytes - lastDispatchBytes < minBytes) {
+			return;
+		}
+		if (!lastDispatchTime.compareAndSet(last, now)) {
+			// another part thread is already dispatching
+			return;
+		}
+		lastDispatchBytes = totalBytes;
+		
+		if (executor == null) {
+			deliver(0, totalBytes);
+		} else {
+			latestBytes = totalBytes;
+			if (scheduled.compareAndSet(false, true)) {
+				executor.execute(dispatchLatest);
+			}
+		}
+	}
+	
+	/**
+	 * Called when a part attempt fails and its bytes have been taken off the total.
+	 */
+	void partFailed(long totalBytes) {
+		if (listener != null) {
+			dispatchNow(ProgressEvent.PART_FAILED_EVENT_CODE, totalBytes);
+		}
+	}
+	
+	/**
+	 * Called once when the whole upload has completed.
+	 */
+	void completed(long totalBytes) {
+		if (listener != null) {
+			dispatchNow(ProgressEvent.COMPLETED_EVENT_CODE, totalBytes);
+		}
+	}
+	
+	private void dispatchNow(final int eventCode, final long totalBytes) {
+		lastDispatchTime.set(System.nanoTime());
+		lastDispatchBytes = totalBytes;
+		if (executor == null) {
+			deliver(eventCode, totalBytes);
+		} else {
+			executor.execute(new Runnable() {
+				public void run() {
+					deliver(eventCode, totalBytes);
+				}
+			});
+		}
+	}
+	
+	private void deliver(int eventCode, long totalBytes) {
+		synchronized (deliverLock) {
+			if (totalBytes < deliveredBytes && eventCode != ProgressEvent.PART_FAILED_EVENT_CODE) {
+				// queued before a later total was delivered, only failures take bytes back
+				return;
+			}
+			ProgressEvent event = new ProgressEvent((int) (totalBytes - deliveredBytes));
+			event.setEventCode(eventCode);
+			deliveredBytes = totalBytes;
+			listener.progressChanged(event, totalBytes, getPercent(totalBytes));
+		}
+	}
+	
+	private int getPercent(long totalBytes) {
+		long contentLength = this.contentLength;
+		if (contentLength < 0) {
+			// length not known yet
+			return -1;
+		} else if (contentLength == 0) {
+			return 100;
+		}
+		return (int) (totalBytes * 100 / contentLength);
+	}
+	
+}
@@ -0,0 +1,105 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+
+package com.readystatesoftware.simpl3r;
+
+/**
+ * A multipart upload known to a resume store, and where it was going. 
+ * 
+ * Entries recorded by older versions of the library have no bucket, 
+ * object key, file or fingerprint.
+ */
+public class ResumeEntry {
+
+	private final String key;
+	private final String uploadId;
+	private final String bucketName;
+	private final String s3key;
+	private final String filePath;
+	private final long updated;
+	private final String fingerprint;
+	private final String iv;
+	
+	public ResumeEntry(String key, String uploadId, String bucketName, String s3key, String filePath, 
+			long updated, String fingerprint, String iv) {
+		this.key = key;
+		this.uploadId = uploadId;
+		this.bucketName = bucketName;
+		this.s3key = s3key;
+		this.filePath = filePath;
+		this.updated = updated;
+		this.fingerprint = fingerprint;
+		this.iv = iv;
+	}
+	
+	/**
+	 * @return the key the store holds the upload under
+	 */
+	public String getKey() {
+		return key;
+	}
+	
+	public String getUploadId() {
+		return uploadId;
+	}
+	
+	/**
+	 * @return the bucket of the upload, or null if not known
+	 */
+	public String getBucketName() {
+		return bucketName;
+	}
+	
+	/**
+	 * @return the object key of the upload, or null if not known
+	 */
+	public String getS3Key() {
+		return s3key;
+	}
+	
+	/**
+	 * @return the path of the file being uploaded, or null if not known or 
+	 * the upload is not from a file
+	 */
+	public String getFilePath() {
+		return filePath;
+	}
+	
+	/**
+	 * @return when the upload was started or last made progress, in 
+	 * milliseconds since the epoch, or 0 if not known
+	 */
+	public long getUpdated() {
+		return updated;
+	}
+	
+	/**
+	 * @return a fingerprint of the source taken when the upload started, or 
+	 * null if not known
+	 */
+	public String getFingerprint() {
+		return fingerprint;
+	}
+	
+	/**
+	 * @return the hex encoded IV of an encrypted upload, or null if the 
+	 * upload is not encrypted
+	 */
+	public String getIv() {
+		return iv;
+	}
+	
+}
@@ -0,0 +1,73 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Persists the state needed to resume an interrupted multipart upload.
+ * 
+ * Implementations must be safe to call from multiple part upload threads.
+ */
+public interface ResumeStore {
+
+	/**
+	 * @return the cached upload id for the key, or null if there is no upload to resume
+	 */
+	public String getUploadId(String key);
+	
+	/**
+	 * @return the upload recorded for the key, or null if there is no upload to resume
+	 */
+	public ResumeEntry getEntry(String key);
+	
+	/**
+	 * @return the parts recorded for the key, in the order they were added
+	 */
+	public List<PartRecord> getParts(String key);
+	
+	/**
+	 * Record a newly initiated upload, discarding any previous state for its key.
+	 */
+	public void startUpload(ResumeEntry entry);
+	
+	/**
+	 * Record a successfully uploaded part.
+	 */
+	public void addPart(String key, PartRecord part);
+	
+	/**
+	 * Make sure everything recorded for the key has reached storage.
+	 */
+	public void flush(String key);
+	
+	/**
+	 * Discard all state for the key.
+	 */
+	public void clear(String key);
+	
+	/**
+	 * Discard all state for each of the keys, in as few writes as possible.
+	 */
+	public void clear(Collection<String> keys);
+	
+	/**
+	 * @return every upload the store holds state for
+	 */
+	public List<ResumeEntry> getEntries();
+	
+}
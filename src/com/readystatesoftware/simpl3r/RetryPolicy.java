@@ -0,0 +1,127 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.io.IOException;
+import java.util.Random;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
+
+/**
+ * Decides whether a failed part upload is tried again, and how long to wait 
+ * first. 
+ * 
+ * Delays grow exponentially from the base delay up to the maximum delay, and 
+ * a random part of each delay is taken off so that parts failing together do 
+ * not all retry at the same moment. Override {@link #isRetryable(Exception)} 
+ * to change which errors are retried.
+ */
+public class RetryPolicy {
+
+	public static final RetryPolicy NONE = new RetryPolicy(1, 0, 0, 0);
+	
+	private static final int DEFAULT_MAX_ATTEMPTS = 4;
+	private static final long DEFAULT_BASE_DELAY_MILLIS = 1000;
+	private static final long DEFAULT_MAX_DELAY_MILLIS = 30000;
+	private static final float DEFAULT_JITTER = 0.5f;
+	
+	private final int maxAttempts;
+	private final long baseDelayMillis;
+	private final long maxDelayMillis;
+	private final float jitter;
+	private final Random random = new Random();
+	
+	public RetryPolicy() {
+		this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_MILLIS, DEFAULT_MAX_DELAY_MILLIS, DEFAULT_JITTER);
+	}
+	
+	/**
+	 * @param maxAttempts total attempts per part, including the first
+	 * @param baseDelayMillis delay before the first retry
+	 * @param maxDelayMillis upper bound for any delay
+	 * @param jitter fraction of each delay, from 0 to 1, that may randomly be taken off
+	 */
+	public RetryPolicy(int maxAttempts, long baseDelayMillis, long maxDelayMillis, float jitter) {
+		if (maxAttempts < 1) {
+			throw new IllegalStateException("Max attempts must be at least 1");
+		}
+		if (jitter < 0 || jitter > 1) {
+			throw new IllegalStateException("Jitter must be between 0 and 1");
+		}
+		this.maxAttempts = maxAttempts;
+		this.baseDelayMillis = baseDelayMillis;
+		this.maxDelayMillis = maxDelayMillis;
+		this.jitter = jitter;
+	}
+	
+	/**
+	 * @param e the exception the attempt failed with
+	 * @param attempt the number of the attempt that failed, starting at 1
+	 * @return true if the part should be tried again
+	 */
+	public boolean shouldRetry(Exception e, int attempt) {
+		return attempt < maxAttempts && isRetryable(e);
+	}
+	
+	/**
+	 * @param attempt the number of the attempt that failed, starting at 1
+	 * @return how long to wait before the next attempt
+	 */
+	public long getDelayMillis(int attempt) {
+		long delay = baseDelayMillis << Math.min(attempt - 1, 30);
+		if (delay <= 0 || delay > maxDelayMillis) {
+			delay = maxDelayMillis;
+		}
+		synchronized (random) {
+			return delay - (long) (delay * jitter * random.nextFloat());
+		}
+	}
+	
+	/**
+	 * By default server errors, throttling, request timeouts and client side 
+	 * I/O errors are retried. Other client errors are not, since sending the 
+	 * same request again would fail the same way.
+	 */
+	protected boolean isRetryable(Exception e) {
+		if (e instanceof UploadIterruptedException) {
+			return false;
+		}
+		if (e instanceof AmazonServiceException) {
+			AmazonServiceException ase = (AmazonServiceException) e;
+			int status = ase.getStatusCode();
+			return status >= 500 
+					|| "RequestTimeout".equals(ase.getErrorCode()) 
+					|| "SlowDown".equals(ase.getErrorCode())
+					|| "Throttling".equals(ase.getErrorCode());
+		}
+		if (e instanceof AmazonClientException) {
+			// network failures surface as client exceptions caused by an IOException
+			for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+				if (cause instanceof IOException) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return false;
+	}
+	
+	public int getMaxAttempts() {
+		return maxAttempts;
+	}
+	
+}
@@ -0,0 +1,195 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+import com.readystatesoftware.simpl3r.utils.SharedPreferencesCompat;
+import com.readystatesoftware.simpl3r.utils.SharedPreferencesUtils;
+
+/**
+ * Resume store that keeps the upload id and a JSON array of part ETags 
+ * in SharedPreferences. 
+ * 
+ * Every part rewrites the whole array, so prefer {@link JournalResumeStore} 
+ * for uploads with many parts.
+ * 
+ * Uploads recorded by older versions have no entry with their bucket and 
+ * time. They are stamped with the time they are first listed, so they 
+ * expire one TTL after an upgrade.
+ */
+public class SharedPreferencesResumeStore implements ResumeStore {
+
+	private static final String PREFS_UPLOAD_ID = "_uploadId";
+	private static final String PREFS_ETAGS = "_etags";
+	private static final String PREFS_ENTRY = "_entry";
+	private static final String PREFS_ETAG_SEP = "~~";
+	
+	private final SharedPreferences prefs;
+	
+	public SharedPreferencesResumeStore(SharedPreferences prefs) {
+		this.prefs = prefs;
+	}
+	
+	public synchronized String getUploadId(String key) {
+		return prefs.getString(key + PREFS_UPLOAD_ID, null);
+	}
+
+	public synchronized ResumeEntry getEntry(String key) {
+		String uploadId = prefs.getString(key + PREFS_UPLOAD_ID, null);
+		if (uploadId == null) {
+			return null;
+		}
+		ResumeEntry entry = readEntry(key, uploadId);
+		return entry != null ? entry : new ResumeEntry(key, uploadId, null, null, null, 0, null, null);
+	}
+
+	public synchronized List<PartRecord> getParts(String key) {
+		List<PartRecord> result = new ArrayList<PartRecord>();		
+		// get the cached etags, older entries have no source range
+		ArrayList<String> etags = SharedPreferencesUtils.getStringArrayPref(prefs, key + PREFS_ETAGS);
+		for (String etagString : etags) {
+			String[] fields = etagString.split(PREFS_ETAG_SEP);
+			long position = fields.length > 3 ? Long.parseLong(fields[2]) : -1;
+			long length = fields.length > 3 ? Long.parseLong(fields[3]) : -1;
+			result.add(new PartRecord(Integer.parseInt(fields[0]), fields[1], position, length));
+		}
+		return result;
+	}
+
+	public synchronized void startUpload(ResumeEntry entry) {
+		// store uploadID and where it is going, with an empty etag array
+		String key = entry.getKey();
+		Editor edit = prefs.edit();
+		edit.putString(key + PREFS_UPLOAD_ID, entry.getUploadId());
+		edit.putString(key + PREFS_ENTRY, encodeEntry(entry, entry.getUpdated()));
+		edit.remove(key + PREFS_ETAGS);
+		SharedPreferencesCompat.apply(edit);
+	}
+
+	public synchronized void addPart(String key, PartRecord part) {
+		String serialEtag = part.getPartNumber() + PREFS_ETAG_SEP + part.getETag() 
+				+ PREFS_ETAG_SEP + part.getPosition() + PREFS_ETAG_SEP + part.getLength();
+		ArrayList<String> etags = SharedPreferencesUtils.getStringArrayPref(prefs, key + PREFS_ETAGS);
+		etags.add(serialEtag);
+		SharedPreferencesUtils.setStringArrayPref(prefs, key + PREFS_ETAGS, etags);
+	}
+	
+	public synchronized void flush(String key) {
+		// every part is already applied, just note that the upload made progress
+		ResumeEntry entry = readEntry(key, prefs.getString(key + PREFS_UPLOAD_ID, null));
+		if (entry != null) {
+			Editor edit = prefs.edit().putString(key + PREFS_ENTRY, encodeEntry(entry, System.currentTimeMillis()));
+			SharedPreferencesCompat.apply(edit);
+		}
+	}
+
+	public synchronized void clear(String key) {
+		// clear the cached uploadId and etags
+        Editor edit = prefs.edit();
+        remove(edit, key);
+    	SharedPreferencesCompat.apply(edit);
+	}
+	
+	public synchronized void clear(Collection<String> keys) {
+		Editor edit = prefs.edit();
+		for (String key : keys) {
+			remove(edit, key);
+		}
+		SharedPreferencesCompat.apply(edit);
+	}
+	
+	public synchronized List<ResumeEntry> getEntries() {
+		List<ResumeEntry> result = new ArrayList<ResumeEntry>();
+		Editor stamps = null;
+		long now = System.currentTimeMillis();
+		for (Map.Entry<String, ?> pref : prefs.getAll().entrySet()) {
+			String name = pref.getKey();
+			if (!name.endsWith(PREFS_UPLOAD_ID) || !(pref.getValue() instanceof String)) {
+				continue;
+			}
+			String key = name.substring(0, name.length() - PREFS_UPLOAD_ID.length());
+			String uploadId = (String) pref.getValue();
+			ResumeEntry entry = readEntry(key, uploadId);
+			if (entry == null) {
+				// recorded by an older version, start its clock now
+				entry = new ResumeEntry(key, uploadId, null, null, null, now, null, null);
+				if (stamps == null) {
+					stamps = prefs.edit();
+				}
+				stamps.putString(key + PREFS_ENTRY, encodeEntry(entry, now));
+			}
+			result.add(entry);
+		}
+		if (stamps != null) {
+			SharedPreferencesCompat.apply(stamps);
+		}
+		return result;
+	}
+	
+	private void remove(Editor edit, String key) {
+		edit.remove(key + PREFS_UPLOAD_ID);
+		edit.remove(key + PREFS_ETAGS);
+		edit.remove(key + PREFS_ENTRY);
+	}
+	
+	private ResumeEntry readEntry(String key, String uploadId) {
+		String json = prefs.getString(key + PREFS_ENTRY, null);
+		if (uploadId == null || json == null) {
+			return null;
+		}
+		try {
+			JSONArray fields = new JSONArray(json);
+			return new ResumeEntry(key, uploadId, emptyToNull(fields.optString(1)), 
+					emptyToNull(fields.optString(2)), emptyToNull(fields.optString(3)), 
+					Long.parseLong(fields.optString(0)), emptyToNull(fields.optString(4)), 
+					emptyToNull(fields.optString(5)));
+		} catch (JSONException e) {
+			return null;
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+	
+	private static String encodeEntry(ResumeEntry entry, long updated) {
+		JSONArray fields = new JSONArray();
+		fields.put(String.valueOf(updated));
+		fields.put(nullToEmpty(entry.getBucketName()));
+		fields.put(nullToEmpty(entry.getS3Key()));
+		fields.put(nullToEmpty(entry.getFilePath()));
+		fields.put(nullToEmpty(entry.getFingerprint()));
+		fields.put(nullToEmpty(entry.getIv()));
+		return fields.toString();
+	}
+	
+	private static String nullToEmpty(String value) {
+		return value == null ? "" : value;
+	}
+	
+	private static String emptyToNull(String value) {
+		return value == null || value.length() == 0 ? null : value;
+	}
+
+}
@@ -0,0 +1,101 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+package com.readystatesoftware.simpl3r;
+
+import android.content.SharedPreferences;
+import android.content.SharedPreferences.Editor;
+
+import com.readystatesoftware.simpl3r.utils.SharedPreferencesCompat;
+
+/**
+ * Records the size, modification time and ETag of each file a 
+ * {@link DirectorySync} has uploaded, keyed by the object it was uploaded 
+ * to. A file whose size and modification time still match its entry is 
+ * taken to be unchanged.
+ */
+public class SyncManifest {
+
+	private static final String PREFS_SEP = "~~";
+	
+	private final SharedPreferences prefs;
+	
+	public SyncManifest(SharedPreferences prefs) {
+		this.prefs = prefs;
+	}
+	
+	/**
+	 * @return the entry for the object, or null if nothing has been recorded
+	 */
+	public synchronized Entry get(String s3bucketName, String s3key) {
+		String entry = prefs.getString(getKey(s3bucketName, s3key), null);
+		if (entry == null) {
+			return null;
+		}
+		String[] fields = entry.split(PREFS_SEP);
+		// earlier versions wrote a missing ETag as "null"
+		String eTag = fields.length > 2 && !fields[2].equals("null") ? fields[2] : null;
+		return new Entry(Long.parseLong(fields[0]), Long.parseLong(fields[1]), eTag);
+	}
+	
+	public synchronized void put(String s3bucketName, String s3key, Entry entry) {
+		String value = entry.getSize() + PREFS_SEP + entry.getLastModified() 
+				+ PREFS_SEP + (entry.getETag() == null ? "" : entry.getETag());
+		Editor edit = prefs.edit().putString(getKey(s3bucketName, s3key), value);
+		SharedPreferencesCompat.apply(edit);
+	}
+	
+	public synchronized void remove(String s3bucketName, String s3key) {
+		Editor edit = prefs.edit().remove(getKey(s3bucketName, s3key));
+		SharedPreferencesCompat.apply(edit);
+	}
+	
+	private String getKey(String s3bucketName, String s3key) {
+		return s3bucketName + "/" + s3key;
+	}
+	
+	public static class Entry {
+		
+		private final long size;
+		private final long lastModified;
+		private final String eTag;
+		
+		public Entry(long size, long lastModified, String eTag) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.eTag = eTag;
+		}
+		
+		public long getSize() {
+			return size;
+		}
+		
+		public long getLastModified() {
+			return lastModified;
+		}
+		
+		public String getETag() {
+			return eTag;
+		}
+		
+		/**
+		 * @return true if the file still has the recorded size and modification time
+		 */
+		public boolean matches(long size, long lastModified) {
+			return this.size == size && this.lastModified == lastModified;
+		}
+		
+	}
+	
+}
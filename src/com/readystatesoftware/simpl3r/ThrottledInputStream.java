@@ -0,0 +1,54 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Input stream that paces its reads through a {@link BandwidthLimiter}.
+ */
+class ThrottledInputStream extends FilterInputStream {
+
+	private final BandwidthLimiter limiter;
+	private final Cancellable owner;
+	
+	ThrottledInputStream(InputStream in, BandwidthLimiter limiter, Cancellable owner) {
+		super(in);
+		this.limiter = limiter;
+		this.owner = owner;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int b = super.read();
+		if (b >= 0) {
+			limiter.acquire(1, owner);
+		}
+		return b;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		int n = super.read(b, off, Math.min(len, limiter.getMaxChunk()));
+		if (n > 0) {
+			limiter.acquire(n, owner);
+		}
+		return n;
+	}
+	
+}
@@ -0,0 +1,395 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.io.File;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import android.content.Context;
+import android.util.Log;
+
+import com.amazonaws.services.s3.AmazonS3Client;
+import com.amazonaws.services.s3.model.ProgressEvent;
+import com.readystatesoftware.simpl3r.Uploader.UploadMetricsListener;
+import com.readystatesoftware.simpl3r.Uploader.UploadProgressListener;
+
+/**
+ * Schedules many uploads over a single shared AmazonS3Client.
+ *
+ * Parts from every active upload run on one pool of part threads, so the
+ * total number of requests in flight never exceeds the manager's budget.
+ * Queued uploads and queued parts are taken in priority order, highest first,
+ * then in the order they were added.
+ *
+ * The client's ClientConfiguration should allow at least as many connections
+ * as the part budget.
+ */
+public class UploadManager {
+
+	private static final String TAG = "Simpl3r";
+
+	public static final int PRIORITY_LOW = -10;
+	public static final int PRIORITY_NORMAL = 0;
+	public static final int PRIORITY_HIGH = 10;
+
+	public enum State {
+		QUEUED, RUNNING, PAUSED, COMPLETED, FAILED, CANCELLED
+	}
+
+	private final Context context;
+	private final AmazonS3Client s3Client;
+	private final ThreadPoolExecutor uploadExecutor;
+	private final ThreadPoolExecutor partExecutor;
+	private final AtomicLong sequence = new AtomicLong();
+
+	private ResumeStore resumeStore;
+	private UploadMetricsListener metricsListener;
+	private int partsPerUpload = 2;
+
+	/**
+	 * @param context context used for the default resume store
+	 * @param s3Client client shared by every upload
+	 * @param maxActiveUploads number of files uploading at once
+	 * @param maxConcurrentParts number of part requests in flight at once, across all files
+	 */
+	public UploadManager(Context context, AmazonS3Client s3Client, int maxActiveUploads, int maxConcurrentParts) {
+		if (maxActiveUploads < 1 || maxConcurrentParts < 1) {
+			throw new IllegalStateException("Concurrency must be at least 1");
+		}
+		this.context = context;
+		this.s3Client = s3Client;
+		uploadExecutor = new ThreadPoolExecutor(maxActiveUploads, maxActiveUploads,
+				0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+		partExecutor = new ThreadPoolExecutor(maxConcurrentParts, maxConcurrentParts,
+				0L, TimeUnit.MILLISECONDS, new PriorityBlockingQueue<Runnable>());
+	}
+
+	/**
+	 * Queue a file for upload with an uploader configured by the manager.
+	 */
+	public UploadHandle enqueue(String s3bucketName, String s3key, File file, int priority) {
+		return enqueue(newUploader(s3bucketName, s3key, file), priority);
+	}
+	
+	/**
+	 * Create an uploader with the manager's settings, ready to be enqueued.
+	 */
+	Uploader newUploader(String s3bucketName, String s3key, File file) {
+		Uploader uploader = new Uploader(context, s3Client, s3bucketName, s3key, file);
+		if (resumeStore != null) {
+			uploader.setResumeStore(resumeStore);
+		}
+		uploader.setConcurrency(partsPerUpload);
+		uploader.setMetricsListener(metricsListener);
+		return uploader;
+	}
+
+	/**
+	 * Queue a pre-configured uploader.
+	 *
+	 * The uploader must use the manager's AmazonS3Client. Its concurrency level
+	 * caps how much of the part budget it may take, and any progress listener
+	 * already set on it keeps receiving updates.
+	 */
+	public UploadHandle enqueue(Uploader uploader, int priority) {
+		UploadHandle handle = new UploadHandle(uploader, priority);
+		uploader.setPartExecutor(handle.partExecutor);
+		handle.wrapProgressListener();
+		uploadExecutor.execute(handle.task = handle.new Task());
+		return handle;
+	}
+
+	/**
+	 * Stop an upload, keeping its state so it can be resumed later.
+	 */
+	public void pause(UploadHandle handle) {
+		synchronized (handle) {
+			if (handle.state == State.QUEUED) {
+				uploadExecutor.remove(handle.task);
+				handle.setState(State.PAUSED);
+			} else if (handle.state == State.RUNNING) {
+				handle.pauseRequested = true;
+				handle.uploader.interrupt();
+			}
+		}
+	}
+
+	/**
+	 * Queue a paused or failed upload again. It resumes from its last uploaded part.
+	 */
+	public void resume(UploadHandle handle) {
+		synchronized (handle) {
+			if (handle.state == State.PAUSED || handle.state == State.FAILED) {
+				handle.setState(State.QUEUED);
+				uploadExecutor.execute(handle.task = handle.new Task());
+			}
+		}
+	}
+
+	/**
+	 * Stop an upload and discard it, including any parts already on S3.
+	 */
+	public void cancel(UploadHandle handle) {
+		synchronized (handle) {
+			if (handle.state == State.RUNNING) {
+				handle.cancelRequested = true;
+				handle.uploader.abort();
+			} else if (handle.state != State.COMPLETED && handle.state != State.CANCELLED) {
+				uploadExecutor.remove(handle.task);
+				handle.setState(State.CANCELLED);
+				// a paused or failed upload may have parts on S3 already
+				final Uploader uploader = handle.uploader;
+				partExecutor.execute(new PrioritizedTask(PRIORITY_HIGH) {
+					public void run() {
+						try {
+							uploader.abortCachedUpload();
+						} catch (Exception e) {
+							Log.w(TAG, "unable to abort cancelled upload", e);
+						}
+					}
+				});
+			}
+		}
+	}
+
+	/**
+	 * Change the priority of an upload. A queued upload is moved to its new
+	 * place in the queue, and parts it submits from now on use the new priority.
+	 */
+	public void setPriority(UploadHandle handle, int priority) {
+		synchronized (handle) {
+			handle.priority = priority;
+			if (handle.state == State.QUEUED && uploadExecutor.remove(handle.task)) {
+				uploadExecutor.execute(handle.task = handle.new Task());
+			}
+		}
+	}
+
+	/**
+	 * Stop accepting uploads. Uploads already running are allowed to finish.
+	 */
+	public void shutdown() {
+		uploadExecutor.shutdown();
+		partExecutor.shutdown();
+	}
+
+	/**
+	 * Set the resume store used by uploaders the manager creates. It should be
+	 * safe to share, such as a {@link JournalResumeStore}.
+	 */
+	public void setResumeStore(ResumeStore resumeStore) {
+		this.resumeStore = resumeStore;
+	}
+
+	/**
+	 * Set the metrics listener used by uploaders the manager creates, for 
+	 * example one {@link UploadMetrics} collecting figures for every upload.
+	 */
+	public void setMetricsListener(UploadMetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+	
+	/**
+	 * Set the concurrency level of uploaders the manager creates, which is the
+	 * share of the part budget a single file may use.
+	 */
+	public void setPartsPerUpload(int partsPerUpload) {
+		if (partsPerUpload < 1) {
+			throw new IllegalStateException("Concurrency must be at least 1");
+		} else {
+			this.partsPerUpload = partsPerUpload;
+		}
+	}
+
+	/**
+	 * Runnable that can be ordered in a priority queue, highest priority first
+	 * and then first in first out.
+	 */
+	private abstract class PrioritizedTask implements Runnable, Comparable<PrioritizedTask> {
+
+		final int priority;
+		final long seq = sequence.getAndIncrement();
+
+		PrioritizedTask(int priority) {
+			this.priority = priority;
+		}
+
+		public int compareTo(PrioritizedTask other) {
+			if (priority != other.priority) {
+				return priority > other.priority ? -1 : 1;
+			}
+			return seq < other.seq ? -1 : (seq == other.seq ? 0 : 1);
+		}
+
+	}
+
+	/**
+	 * Tracks the state, progress and result of a queued upload.
+	 */
+	public class UploadHandle {
+
+		private final Uploader uploader;
+		private volatile int priority;
+		private volatile State state = State.QUEUED;
+		private volatile long bytesUploaded;
+		private volatile int percentUploaded;
+		private volatile String location;
+		private volatile Exception exception;
+		private boolean pauseRequested;
+		private boolean cancelRequested;
+		private Task task;
+		private CountDownLatch done = new CountDownLatch(1);
+
+		// submits this upload's parts to the shared pool at the upload's current priority
+		private final Executor partExecutor = new Executor() {
+			public void execute(final Runnable command) {
+				UploadManager.this.partExecutor.execute(new PrioritizedTask(priority) {
+					public void run() {
+						command.run();
+					}
+				});
+			}
+		};
+
+		UploadHandle(Uploader uploader, int priority) {
+			this.uploader = uploader;
+			this.priority = priority;
+		}
+
+		public Uploader getUploader() {
+			return uploader;
+		}
+
+		public int getPriority() {
+			return priority;
+		}
+
+		public State getState() {
+			return state;
+		}
+
+		public long getBytesUploaded() {
+			return bytesUploaded;
+		}
+
+		public int getPercentUploaded() {
+			return percentUploaded;
+		}
+
+		/**
+		 * @return the URL of the uploaded file, or null if it has not completed
+		 */
+		public String getLocation() {
+			return location;
+		}
+
+		/**
+		 * @return the exception that stopped the upload, or null
+		 */
+		public Exception getException() {
+			return exception;
+		}
+
+		/**
+		 * Block until the upload completes, fails, pauses or is cancelled.
+		 *
+		 * @return the final state
+		 */
+		public State await() throws InterruptedException {
+			CountDownLatch latch;
+			synchronized (this) {
+				latch = done;
+			}
+			latch.await();
+			return state;
+		}
+
+		private void setState(State state) {
+			this.state = state;
+			if (state != State.QUEUED && state != State.RUNNING) {
+				done.countDown();
+			} else if (done.getCount() == 0) {
+				done = new CountDownLatch(1);
+			}
+		}
+
+		private void wrapProgressListener() {
+			final UploadProgressListener listener = uploader.getProgressListener();
+			uploader.setProgressListener(new UploadProgressListener() {
+				public void progressChanged(ProgressEvent progressEvent, long bytesUploaded, int percentUploaded) {
+					UploadHandle.this.bytesUploaded = bytesUploaded;
+					UploadHandle.this.percentUploaded = percentUploaded;
+					if (listener != null) {
+						listener.progressChanged(progressEvent, bytesUploaded, percentUploaded);
+					}
+				}
+			});
+		}
+
+		private class Task extends PrioritizedTask {
+
+			Task() {
+				super(UploadHandle.this.priority);
+			}
+
+			public void run() {
+				Uploader.UploadFuture future;
+				synchronized (UploadHandle.this) {
+					if (state != State.QUEUED) {
+						return;
+					}
+					pauseRequested = false;
+					cancelRequested = false;
+					exception = null;
+					// clears the uploader's flags before a pause or cancel can set them
+					future = uploader.newFuture(null);
+					setState(State.RUNNING);
+				}
+
+				State result;
+				try {
+					future.run();
+					location = future.getResult();
+					result = State.COMPLETED;
+				} catch (UploadIterruptedException e) {
+					result = State.PAUSED;
+				} catch (Exception e) {
+					Log.w(TAG, "upload failed", e);
+					exception = e;
+					result = State.FAILED;
+				}
+
+				synchronized (UploadHandle.this) {
+					// a cancel that came too late to stop the upload does not undo it
+					if (cancelRequested && result != State.COMPLETED) {
+						result = State.CANCELLED;
+					} else if (pauseRequested && result != State.COMPLETED) {
+						result = State.PAUSED;
+					}
+					setState(result);
+				}
+			}
+
+		}
+
+	}
+
+}
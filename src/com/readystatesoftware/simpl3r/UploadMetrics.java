@@ -0,0 +1,185 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.readystatesoftware.simpl3r.Uploader.UploadMetricsListener;
+import com.readystatesoftware.simpl3r.utils.RollingHistogram;
+
+/**
+ * Metrics listener that keeps rolling histograms of recent request 
+ * latencies and part throughput, plus running totals. 
+ * 
+ * One instance can be shared by any number of uploaders. Latencies are kept 
+ * in milliseconds, except ETag persistence which is kept in microseconds, 
+ * and throughput in bytes per second.
+ */
+public class UploadMetrics implements UploadMetricsListener {
+
+	private static final int DEFAULT_CAPACITY = 256;
+	
+	private final RollingHistogram initiateLatency;
+	private final RollingHistogram completeLatency;
+	private final RollingHistogram abortLatency;
+	private final RollingHistogram partLatency;
+	private final RollingHistogram partThroughput;
+	private final RollingHistogram etagPersistLatency;
+	
+	private final AtomicLong partsUploaded = new AtomicLong();
+	private final AtomicLong bytesUploaded = new AtomicLong();
+	private final AtomicLong retries = new AtomicLong();
+	private final AtomicLong bytesRetried = new AtomicLong();
+	private final AtomicLong resumes = new AtomicLong();
+	private final AtomicLong bytesResent = new AtomicLong();
+	
+	public UploadMetrics() {
+		this(DEFAULT_CAPACITY);
+	}
+	
+	/**
+	 * @param capacity number of recent samples kept by each histogram
+	 */
+	public UploadMetrics(int capacity) {
+		initiateLatency = new RollingHistogram(capacity);
+		completeLatency = new RollingHistogram(capacity);
+		abortLatency = new RollingHistogram(capacity);
+		partLatency = new RollingHistogram(capacity);
+		partThroughput = new RollingHistogram(capacity);
+		etagPersistLatency = new RollingHistogram(capacity);
+	}
+	
+	public void uploadInitiated(long latencyNanos) {
+		initiateLatency.record(latencyNanos / 1000000);
+	}
+
+	public void uploadCompleted(long latencyNanos) {
+		completeLatency.record(latencyNanos / 1000000);
+	}
+
+	public void uploadAborted(long latencyNanos) {
+		abortLatency.record(latencyNanos / 1000000);
+	}
+
+	public void partUploaded(int partNumber, long bytes, long latencyNanos) {
+		partsUploaded.incrementAndGet();
+		bytesUploaded.addAndGet(bytes);
+		partLatency.record(latencyNanos / 1000000);
+		if (latencyNanos > 0) {
+			partThroughput.record(bytes * 1000000000L / latencyNanos);
+		}
+	}
+
+	public void partRetried(int partNumber, int failedAttempt, long bytesSent) {
+		retries.incrementAndGet();
+		bytesRetried.addAndGet(bytesSent);
+	}
+
+	public void uploadResumed(int partsKept, long bytesKept, long bytesResent) {
+		resumes.incrementAndGet();
+		this.bytesResent.addAndGet(bytesResent);
+	}
+
+	public void etagPersisted(long latencyNanos) {
+		etagPersistLatency.record(latencyNanos / 1000);
+	}
+	
+	public RollingHistogram.Snapshot getInitiateLatency() {
+		return initiateLatency.snapshot();
+	}
+	
+	public RollingHistogram.Snapshot getCompleteLatency() {
+		return completeLatency.snapshot();
+	}
+	
+	public RollingHistogram.Snapshot getAbortLatency() {
+		return abortLatency.snapshot();
+	}
+	
+	public RollingHistogram.Snapshot getPartLatency() {
+		return partLatency.snapshot();
+	}
+	
+	public RollingHistogram.Snapshot getPartThroughput() {
+		return partThroughput.snapshot();
+	}
+	
+	public RollingHistogram.Snapshot getETagPersistLatency() {
+		return etagPersistLatency.snapshot();
+	}
+	
+	public long getPartsUploaded() {
+		return partsUploaded.get();
+	}
+	
+	public long getBytesUploaded() {
+		return bytesUploaded.get();
+	}
+	
+	public long getRetries() {
+		return retries.get();
+	}
+	
+	/**
+	 * @return bytes sent by part attempts that failed and were retried
+	 */
+	public long getBytesRetried() {
+		return bytesRetried.get();
+	}
+	
+	public long getResumes() {
+		return resumes.get();
+	}
+	
+	/**
+	 * @return bytes recorded as uploaded before a resume that had to be sent again
+	 */
+	public long getBytesResent() {
+		return bytesResent.get();
+	}
+	
+	/**
+	 * Discard all samples and totals.
+	 */
+	public void reset() {
+		initiateLatency.clear();
+		completeLatency.clear();
+		abortLatency.clear();
+		partLatency.clear();
+		partThroughput.clear();
+		etagPersistLatency.clear();
+		partsUploaded.set(0);
+		bytesUploaded.set(0);
+		retries.set(0);
+		bytesRetried.set(0);
+		resumes.set(0);
+		bytesResent.set(0);
+	}
+	
+	/**
+	 * @return a one line summary of every metric, suitable for logging
+	 */
+	@Override
+	public String toString() {
+		return "initiateMs[" + getInitiateLatency() + "] completeMs[" + getCompleteLatency() 
+				+ "] abortMs[" + getAbortLatency() + "] partMs[" + getPartLatency() 
+				+ "] partBytesPerSec[" + getPartThroughput() + "] etagPersistUs[" + getETagPersistLatency() 
+				+ "] parts=" + getPartsUploaded() + " bytes=" + getBytesUploaded() 
+				+ " retries=" + getRetries() + " bytesRetried=" + getBytesRetried() 
+				+ " resumes=" + getResumes() + " bytesResent=" + getBytesResent();
+	}
+
+}
@@ -0,0 +1,290 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PipedInputStream;
+import java.io.PipedOutputStream;
+import java.nio.channels.FileChannel;
+
+import com.readystatesoftware.simpl3r.utils.ChannelInputStream;
+
+/**
+ * The data to be uploaded. 
+ * 
+ * Files and file channels are repeatable: any range can be read again, so 
+ * their uploads can be resumed, retried part by part and sent in parallel. 
+ * Streams and producers can only be read once, from the start. They are cut 
+ * into parts in memory as the data arrives and may be of unknown length.
+ */
+public abstract class UploadSource {
+
+	public static final long UNKNOWN_LENGTH = -1;
+	
+	/**
+	 * @return the total number of bytes, or UNKNOWN_LENGTH
+	 */
+	public abstract long getLength();
+	
+	/**
+	 * @return true if {@link #openRange(long, long)} may be called any number of times
+	 */
+	public abstract boolean isRepeatable();
+	
+	/**
+	 * Open a stream over part of a repeatable source.
+	 */
+	public InputStream openRange(long position, long length) throws IOException {
+		throw new UnsupportedOperationException("Source is not repeatable");
+	}
+	
+	/**
+	 * Open a stream over the whole source. Sources that are not repeatable 
+	 * can only be opened once.
+	 */
+	public InputStream openStream() throws IOException {
+		return openRange(0, getLength());
+	}
+	
+	/**
+	 * @return the file backing this source, or null
+	 */
+	File getFile() {
+		return null;
+	}
+	
+	/**
+	 * Release anything held open by the source between uploads.
+	 */
+	void close() {
+	}
+	
+	public static UploadSource fromFile(File file) {
+		return new FileSource(file);
+	}
+	
+	/**
+	 * The channel is read with positioned reads and is not closed by the uploader.
+	 */
+	public static UploadSource fromChannel(FileChannel channel) {
+		return new ChannelSource(channel);
+	}
+	
+	/**
+	 * @param in stream to upload, closed when the upload finishes
+	 * @param length number of bytes in the stream, or UNKNOWN_LENGTH
+	 */
+	public static UploadSource fromStream(InputStream in, long length) {
+		return new StreamSource(in, length);
+	}
+	
+	/**
+	 * The producer is run on its own thread when the upload starts, and parts 
+	 * are uploaded while it is still writing.
+	 */
+	public static UploadSource fromProducer(Producer producer) {
+		return new ProducerSource(producer);
+	}
+	
+	public interface Producer {
+		/**
+		 * Write the data to upload. The stream is closed once this returns.
+		 */
+		public void writeTo(OutputStream out) throws IOException;
+	}
+	
+	/**
+	 * Opens the file once and serves every part from the one channel with 
+	 * positioned reads, rather than opening and skipping through the file 
+	 * for each part.
+	 */
+	private static class FileSource extends UploadSource {
+		
+		private final File file;
+		private FileInputStream stream;
+		
+		FileSource(File file) {
+			this.file = file;
+		}
+		
+		@Override
+		public long getLength() {
+			return file.length();
+		}
+		
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+		
+		@Override
+		public InputStream openRange(long position, long length) throws IOException {
+			return new ChannelInputStream(getChannel(), position, length);
+		}
+		
+		@Override
+		File getFile() {
+			return file;
+		}
+		
+		private synchronized FileChannel getChannel() throws IOException {
+			// an interrupted read closes the channel, so open it again if needed
+			if (stream == null || !stream.getChannel().isOpen()) {
+				close();
+				stream = new FileInputStream(file);
+			}
+			return stream.getChannel();
+		}
+		
+		@Override
+		synchronized void close() {
+			if (stream != null) {
+				try {
+					stream.close();
+				} catch (IOException e) {
+					// ignore
+				}
+				stream = null;
+			}
+		}
+		
+	}
+	
+	private static class ChannelSource extends UploadSource {
+		
+		private final FileChannel channel;
+		
+		ChannelSource(FileChannel channel) {
+			this.channel = channel;
+		}
+		
+		@Override
+		public long getLength() {
+			try {
+				return channel.size();
+			} catch (IOException e) {
+				return UNKNOWN_LENGTH;
+			}
+		}
+		
+		@Override
+		public boolean isRepeatable() {
+			return true;
+		}
+		
+		@Override
+		public InputStream openRange(long position, long length) throws IOException {
+			return new ChannelInputStream(channel, position, length);
+		}
+		
+	}
+	
+	private static class StreamSource extends UploadSource {
+		
+		private final InputStream in;
+		private final long length;
+		private boolean opened = false;
+		
+		StreamSource(InputStream in, long length) {
+			this.in = in;
+			this.length = length;
+		}
+		
+		@Override
+		public long getLength() {
+			return length;
+		}
+		
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+		
+		@Override
+		public synchronized InputStream openStream() throws IOException {
+			if (opened) {
+				throw new IOException("Stream has already been read");
+			}
+			opened = true;
+			return in;
+		}
+		
+	}
+	
+	private static class ProducerSource extends UploadSource {
+		
+		private static final int PIPE_SIZE = 64 * 1024;
+		
+		private final Producer producer;
+		private volatile IOException producerException;
+		
+		ProducerSource(Producer producer) {
+			this.producer = producer;
+		}
+		
+		@Override
+		public long getLength() {
+			return UNKNOWN_LENGTH;
+		}
+		
+		@Override
+		public boolean isRepeatable() {
+			return false;
+		}
+		
+		@Override
+		public InputStream openStream() throws IOException {
+			final PipedOutputStream out = new PipedOutputStream();
+			PipedInputStream in = new PipedInputStream(out, PIPE_SIZE) {
+				@Override
+				public synchronized int read(byte[] b, int off, int len) throws IOException {
+					int n = super.read(b, off, len);
+					if (n < 0 && producerException != null) {
+						// don't let a failed producer look like a complete upload
+						throw producerException;
+					}
+					return n;
+				}
+			};
+			Thread thread = new Thread("Simpl3r-producer") {
+				@Override
+				public void run() {
+					try {
+						producer.writeTo(out);
+					} catch (IOException e) {
+						producerException = e;
+					} catch (RuntimeException e) {
+						producerException = new IOException("Producer failed: " + e);
+					} finally {
+						try {
+							out.close();
+						} catch (IOException e) {
+							// ignore
+						}
+					}
+				}
+			};
+			thread.start();
+			return in;
+		}
+		
+	}
+	
+}
@@ -15,262 +15,2524 @@
 
 package com.readystatesoftware.simpl3r;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
 
 import android.content.Context;
 import android.content.SharedPreferences;
-import android.content.SharedPreferences.Editor;
 import android.util.Log;
 
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.AmazonServiceException;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CannedAccessControlList;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
 import com.amazonaws.services.s3.model.CompleteMultipartUploadResult;
+import com.amazonaws.services.s3.model.CopyPartRequest;
+import com.amazonaws.services.s3.model.CopyPartResult;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
 import com.amazonaws.services.s3.model.InitiateMultipartUploadResult;
+import com.amazonaws.services.s3.model.ListPartsRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.PartETag;
+import com.amazonaws.services.s3.model.PartListing;
+import com.amazonaws.services.s3.model.PartSummary;
 import com.amazonaws.services.s3.model.ProgressEvent;
 import com.amazonaws.services.s3.model.ProgressListener;
+import com.amazonaws.services.s3.model.PutObjectRequest;
+import com.amazonaws.services.s3.model.PutObjectResult;
 import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.model.UploadPartResult;
-import com.readystatesoftware.simpl3r.utils.SharedPreferencesCompat;
-import com.readystatesoftware.simpl3r.utils.SharedPreferencesUtils;
+import com.readystatesoftware.simpl3r.utils.BufferPool;
+import com.readystatesoftware.simpl3r.utils.DigestUtils;
 
 public class Uploader {
 	
 	private static final long MIN_DEFAULT_PART_SIZE = 5 * 1024 * 1024;
+	private static final long MAX_SINGLE_PUT_SIZE = 5L * 1024 * 1024 * 1024;
+	private static final long MAX_COPY_PART_SIZE = 5L * 1024 * 1024 * 1024;
+	private static final long MAX_PART_SIZE = 5L * 1024 * 1024 * 1024;
+	private static final int MAX_PART_COUNT = 10000;
+	
+	// room for the compressor to finish a part once it reaches the part size
+	private static final int GZIP_BUFFER_SLACK = 1024 * 1024;
+	private static final int GZIP_INPUT_SIZE = 64 * 1024;
+	private static final String GZIP_RESUME_SUFFIX = "#gzip";
+	private static final String GZIP_METADATA = "simpl3r-content-encoding";
+	
+	private static final long DEFAULT_PROGRESS_INTERVAL_MILLIS = 250;
+	private static final long DEFAULT_PROGRESS_INTERVAL_BYTES = 64 * 1024;
 	
 	private static final String TAG = "Simpl3r";
-	private static final String PREFS_NAME = "preferences_simpl3r";
-	private static final String PREFS_UPLOAD_ID = "_uploadId";
-	private static final String PREFS_ETAGS = "_etags";
-	private static final String PREFS_ETAG_SEP = "~~";
+	static final String PREFS_NAME = "preferences_simpl3r";
+	private static final String FINGERPRINT_PREFS_NAME = "preferences_simpl3r_fingerprints";
+	private static final String LAYOUT_PREFS_NAME = "preferences_simpl3r_layouts";
+	private static final int FINGERPRINT_BUFFER_SIZE = 64 * 1024;
+	private static final int FINGERPRINT_SAMPLES = 4;
+	
+	// resume keys of uploads running in this process
+	private static final Set<String> RUNNING_KEYS = Collections.synchronizedSet(new HashSet<String>());
+	
+	private static final Comparator<PartETag> PART_NUMBER_ORDER = new Comparator<PartETag>() {
+		public int compare(PartETag lhs, PartETag rhs) {
+			return lhs.getPartNumber() - rhs.getPartNumber();
+		}
+	};
 	
 	private AmazonS3Client s3Client;
 	private String s3bucketName;
 	private String s3key;
-	private File file;
+	private UploadSource source;
+	private String eTag;
+	private String sourceFingerprint;
+	// IV of the object being uploaded when encrypting
+	private byte[] uploadIv;
+	// how the object written by the last start() was split into parts
+	private long[] uploadedPartLengths;
+	private boolean uploadedMultipart;
 	
-	private SharedPreferences prefs;
+	private ResumeStore resumeStore;
 	private long partSize = MIN_DEFAULT_PART_SIZE;	
+	private PartSizer partSizer;
+	private long singlePutThreshold = MIN_DEFAULT_PART_SIZE;
 	private UploadProgressListener progressListener;
-	private long bytesUploaded = 0;
-	private boolean userInterrupted = false;
-	private boolean userAborted = false;
+	private Executor progressExecutor;
+	private long progressIntervalMillis = DEFAULT_PROGRESS_INTERVAL_MILLIS;
+	private long progressIntervalBytes = DEFAULT_PROGRESS_INTERVAL_BYTES;
+	private boolean verifyIntegrity = false;
+	private boolean skipIfIdentical = false;
+	private FingerprintCache fingerprintCache;
+	private boolean appendMode = false;
+	private ObjectLayoutCache layoutCache;
+	private boolean gzip = false;
+	private int gzipLevel = Deflater.DEFAULT_COMPRESSION;
+	private CtrEncryption encryption;
+	private int concurrency = 1;
+	private ConcurrencyController concurrencyController;
+	private Executor partExecutor;
+	private volatile boolean userInterrupted = false;
+	private volatile boolean userAborted = false;
+	private final Object cancelLock = new Object();
+	private RetryPolicy retryPolicy = new RetryPolicy();
+	private UploadRetryListener retryListener;
+	private UploadMetricsListener metricsListener;
+	private BandwidthLimiter bandwidthLimiter;
+	private final AtomicInteger retryCount = new AtomicInteger();
 	
 	public Uploader(Context context, AmazonS3Client s3Client, String s3bucketName, String s3key, File file) {
+		this(context, s3Client, s3bucketName, s3key, UploadSource.fromFile(file));
+	}
+	
+	/**
+	 * Upload from a channel, stream or producer. 
+	 * 
+	 * Only file and channel sources can be resumed. Other sources are read 
+	 * once into part sized buffers, at most one more than the concurrency 
+	 * level, and their parts are discarded from S3 if the upload fails.
+	 */
+	public Uploader(Context context, AmazonS3Client s3Client, String s3bucketName, String s3key, UploadSource source) {
 		this.s3Client = s3Client;
 		this.s3key = s3key;
 		this.s3bucketName = s3bucketName;
-		this.file = file;
-		prefs = context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE);
+		this.source = source;
+		resumeStore = new SharedPreferencesResumeStore(context.getSharedPreferences(PREFS_NAME, Context.MODE_PRIVATE));
+		fingerprintCache = new FingerprintCache(context.getSharedPreferences(FINGERPRINT_PREFS_NAME, Context.MODE_PRIVATE));
+		layoutCache = new ObjectLayoutCache(context.getSharedPreferences(LAYOUT_PREFS_NAME, Context.MODE_PRIVATE));
 	}
 	
 	/**
-	 * Initiate a multipart file upload to Amazon S3
+	 * Initiate a multipart file upload to Amazon S3, blocking until it 
+	 * completes.
 	 * 
 	 * @return the URL of a successfully uploaded file
 	 */
 	public String start() {
+		UploadFuture future = newFuture(null);
+		future.run();
+		return future.getResult();
+	}
+	
+	/**
+	 * Run the upload on an executor instead of the calling thread. 
+	 * 
+	 * The executor's thread is held for the whole upload, waiting on its 
+	 * parts most of the time, so an executor with cheap threads suits many 
+	 * pending uploads. An uploader runs one upload at a time.
+	 * 
+	 * @param executor executor to run the upload on
+	 * @param callback told when the upload completes or fails, or null
+	 * @return a future for the URL of the uploaded file
+	 */
+	public UploadFuture startAsync(Executor executor, UploadCallback callback) {
+		UploadFuture future = newFuture(callback);
+		executor.execute(future);
+		return future;
+	}
+	
+	/**
+	 * Clear any earlier interrupt or abort and create the task for one upload. 
+	 * Cleared here so a cancel that arrives before the upload runs is kept.
+	 */
+	UploadFuture newFuture(UploadCallback callback) {
+		userInterrupted = false;
+		userAborted = false;
+		return new UploadFuture(callback);
+	}
+	
+	private String upload() {
 		
-		// initialize
+		retryCount.set(0);
+		eTag = null;
+		sourceFingerprint = null;
+		uploadIv = null;
+		uploadedPartLengths = null;
+		
+		String resumeKey = getResumeKey();
+		RUNNING_KEYS.add(resumeKey);
+		try {
+			String location = null;
+			// both compare the source with the stored object, which is ciphertext when encrypting
+			if (appendMode && encryption == null) {
+				location = uploadTail();
+			}
+			if (location == null && skipIfIdentical && encryption == null) {
+				location = findIdenticalObject();
+			}
+			if (location == null) {
+				location = !source.isRepeatable() || gzip ? uploadBuffered() : uploadFixedParts();
+			}
+			if (appendMode || skipIfIdentical) {
+				recordLayout();
+			}
+			return location;
+		} finally {
+			RUNNING_KEYS.remove(resumeKey);
+			source.close();
+		}
+		
+	}
+	
+	/**
+	 * Check whether the object at the key already has the content being 
+	 * uploaded, by comparing its ETag with the one this upload would give it. 
+	 * 
+	 * The source is only read when the object exists with the same length, 
+	 * and the ETag computed for a file is cached while the file is unchanged. 
+	 * The part lengths recorded when the object was uploaded from here are 
+	 * used while it still has the ETag recorded with them.
+	 * 
+	 * @return the URL of the existing object, or null if it has to be uploaded
+	 */
+	private String findIdenticalObject() {
+		
+		final long contentLength = source.getLength();
+		if (gzip || !source.isRepeatable() || contentLength == UploadSource.UNKNOWN_LENGTH) {
+			// the ETag cannot be known before the upload
+			return null;
+		}
+		
+		ObjectMetadata existing;
+		try {
+			existing = s3Client.getObjectMetadata(s3bucketName, s3key);
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() != 404) {
+				Log.w(TAG, "unable to check for an existing " + s3key, e);
+			}
+			return null;
+		}
+		String remoteETag = DigestUtils.unquote(existing.getETag());
+		if (existing.getContentLength() != contentLength || remoteETag == null) {
+			return null;
+		}
+		
+		// single request objects have a plain MD5 for an ETag
+		boolean multipart = contentLength >= singlePutThreshold && contentLength > 0;
+		long[] partLengths;
+		String localETag;
+		ObjectLayoutCache.Layout layout = layoutCache.get(s3bucketName, s3key);
+		if (layout != null && layout.getETag().equalsIgnoreCase(remoteETag) && layout.getLength() == contentLength) {
+			// uploaded from here, so its part lengths are known whatever sized them
+			multipart = layout.isMultipart();
+			partLengths = layout.getPartLengths();
+			localETag = computeETag(partLengths, multipart);
+		} else if (multipart && partSizer != null) {
+			// the part lengths of another upload cannot be worked out
+			return null;
+		} else {
+			long fingerprintPartSize = multipart ? getFixedPartSize(contentLength) : 0;
+			partLengths = getPartLengths(contentLength, multipart);
+			File file = source.getFile();
+			localETag = file == null ? null : fingerprintCache.get(file, fingerprintPartSize);
+			if (localETag == null) {
+				long size = file == null ? 0 : file.length();
+				long lastModified = file == null ? 0 : file.lastModified();
+				localETag = computeETag(partLengths, multipart);
+				if (file != null) {
+					fingerprintCache.put(file, size, lastModified, fingerprintPartSize, localETag);
+				}
+			}
+		}
+		
+		if (!localETag.equalsIgnoreCase(remoteETag)) {
+			Log.i(TAG, "existing " + s3key + " differs, uploading");
+			return null;
+		}
+		
+		Log.i(TAG, "identical object already at " + s3key + ", skipping upload");
+		
+		ProgressDispatcher dispatcher = new ProgressDispatcher(progressListener, progressExecutor, 
+				progressIntervalMillis, progressIntervalBytes, contentLength, 0);
+		dispatcher.completed(contentLength);
+		
+		eTag = remoteETag;
+		uploadedPartLengths = partLengths;
+		uploadedMultipart = multipart;
+		return s3Client.getResourceUrl(s3bucketName, s3key);
+	}
+	
+	/**
+	 * Compute the ETag S3 gives an object made of the given parts from the 
+	 * start of the source, the MD5 of the content or, for a multipart upload, 
+	 * the MD5 of the part MD5s followed by the part count.
+	 */
+	private String computeETag(long[] partLengths, boolean multipart) {
+		MessageDigest partsDigest = DigestUtils.newMd5();
+		MessageDigest digest = DigestUtils.newMd5();
+		byte[] buffer = new byte[FINGERPRINT_BUFFER_SIZE];
+		long position = 0;
+		for (long length : partLengths) {
+			try {
+				InputStream in = source.openRange(position, length);
+				try {
+					int n;
+					while ((n = in.read(buffer)) != -1) {
+						if (userInterrupted || userAborted) {
+							throw cancellation(null);
+						}
+						digest.update(buffer, 0, n);
+					}
+				} finally {
+					in.close();
+				}
+			} catch (IOException e) {
+				throw new AmazonClientException("Unable to read upload source", e);
+			}
+			position += length;
+			if (!multipart) {
+				return DigestUtils.toHex(digest.digest());
+			}
+			partsDigest.update(digest.digest());
+		}
+		return DigestUtils.toHex(partsDigest.digest()) + "-" + partLengths.length;
+	}
+	
+	/**
+	 * @return the part lengths an upload of the whole source would use
+	 */
+	private long[] getPartLengths(long contentLength, boolean multipart) {
+		if (!multipart) {
+			return new long[] { contentLength };
+		}
+		long[] lengths = new long[getPartCount(contentLength)];
+		for (int k = 1; k <= lengths.length; k++) {
+			lengths[k - 1] = getPartSize(k, contentLength);
+		}
+		return lengths;
+	}
+	
+	/**
+	 * Upload only what has been appended to the source since it was last 
+	 * uploaded to this key. 
+	 * 
+	 * The existing object is confirmed to be a prefix of the source by 
+	 * recomputing its ETag from the start of the source, using the part 
+	 * lengths recorded when it was uploaded. The new object is then assembled 
+	 * from server side copies of the existing object followed by the new 
+	 * bytes, so the prefix is read locally but never sent again.
+	 * 
+	 * @return the URL of the object, or null if the whole source has to be uploaded
+	 */
+	private String uploadTail() {
+		
+		final long contentLength = source.getLength();
+		if (gzip || !source.isRepeatable() || contentLength == UploadSource.UNKNOWN_LENGTH) {
+			return null;
+		}
+		ObjectLayoutCache.Layout layout = layoutCache.get(s3bucketName, s3key);
+		if (layout == null) {
+			return null;
+		}
+		
+		ObjectMetadata existing;
+		try {
+			existing = s3Client.getObjectMetadata(s3bucketName, s3key);
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() != 404) {
+				Log.w(TAG, "unable to check for an existing " + s3key, e);
+			}
+			return null;
+		}
+		String remoteETag = DigestUtils.unquote(existing.getETag());
+		final long prefixLength = layout.getLength();
+		if (!layout.getETag().equalsIgnoreCase(remoteETag) || existing.getContentLength() != prefixLength) {
+			// the object was replaced by someone else
+			layoutCache.remove(s3bucketName, s3key);
+			return null;
+		}
+		if (contentLength < prefixLength 
+				|| !computeETag(layout.getPartLengths(), layout.isMultipart()).equalsIgnoreCase(remoteETag)) {
+			Log.i(TAG, "existing " + s3key + " is not a prefix of the source, uploading");
+			return null;
+		}
+		
+		ProgressDispatcher dispatcher = new ProgressDispatcher(progressListener, progressExecutor, 
+				progressIntervalMillis, progressIntervalBytes, contentLength, prefixLength);
+		
+		if (contentLength == prefixLength) {
+			Log.i(TAG, "nothing appended to " + s3key + ", skipping upload");
+			dispatcher.completed(contentLength);
+			eTag = remoteETag;
+			uploadedPartLengths = layout.getPartLengths();
+			uploadedMultipart = layout.isMultipart();
+			return s3Client.getResourceUrl(s3bucketName, s3key);
+		}
+		if (prefixLength < MIN_DEFAULT_PART_SIZE) {
+			// copied parts are not last, so they must meet the S3 minimum
+			return null;
+		}
+		
+		Log.i(TAG, "appending " + (contentLength - prefixLength) + " bytes to " + s3key);
+		
+		String uploadId = initiateUpload();
+		ActiveUpload upload = new ActiveUpload(uploadId, dispatcher, false, prefixLength);
+		List<Long> partLengths = new ArrayList<Long>();
 		List<PartETag> partETags = new ArrayList<PartETag>();
-		final long contentLength = file.length();
-		long filePosition = 0;
-		int startPartNumber = 1;
+		try {
+			// the existing object, in as few parts as S3 allows, of even size so 
+			// none falls under the minimum since the tail comes after them all
+			int copyParts = (int) ((prefixLength + MAX_COPY_PART_SIZE - 1) / MAX_COPY_PART_SIZE);
+			int partNumber = 0;
+			long position = 0;
+			while (partNumber < copyParts) {
+				checkCancelled(upload);
+				long end = prefixLength * (partNumber + 1) / copyParts;
+				partETags.add(copyPart(uploadId, ++partNumber, position, end - position, remoteETag));
+				partLengths.add(end - position);
+				position = end;
+			}
+			
+			// then the appended bytes
+			FileParts tailParts = new FileParts(prefixLength, partNumber + 1, contentLength);
+			partETags.addAll(uploadParts(upload, tailParts));
+			checkCancelled(upload);
+			for (long length : tailParts.getPartLengths()) {
+				partLengths.add(length);
+			}
+		} catch (RuntimeException e) {
+			// the copied parts cannot be resumed, so nothing is kept
+			discardUpload(upload);
+			throw e;
+		}
 		
-		userInterrupted = false;
-		userAborted = false;
-		bytesUploaded = 0;
+		String location = completeUpload(upload, partETags, contentLength);
+		uploadedPartLengths = new long[partLengths.size()];
+		for (int i = 0; i < uploadedPartLengths.length; i++) {
+			uploadedPartLengths[i] = partLengths.get(i);
+		}
+		uploadedMultipart = true;
+		return location;
+	}
+	
+	/**
+	 * Copy a range of the existing object into a part of the new one.
+	 */
+	private PartETag copyPart(String uploadId, int partNumber, long position, long length, String sourceETag) {
+		CopyPartRequest copyRequest = new CopyPartRequest();
+		copyRequest.setSourceBucketName(s3bucketName);
+		copyRequest.setSourceKey(s3key);
+		copyRequest.setDestinationBucketName(s3bucketName);
+		copyRequest.setDestinationKey(s3key);
+		copyRequest.setUploadId(uploadId);
+		copyRequest.setPartNumber(partNumber);
+		copyRequest.setFirstByte(position);
+		copyRequest.setLastByte(position + length - 1);
+		// fail if the object is replaced while it is being copied
+		copyRequest.setMatchingETagConstraints(Collections.singletonList(sourceETag));
+		
+		Log.i(TAG, "copying part " + partNumber + " with size " + length);
+		
+		long started = System.nanoTime();
+		CopyPartResult result = s3Client.copyPart(copyRequest);
+		if (result == null) {
+			throw new AmazonClientException(s3key + " changed while appending to it");
+		}
+		if (metricsListener != null) {
+			metricsListener.partUploaded(partNumber, length, System.nanoTime() - started);
+		}
+		return new PartETag(partNumber, result.getETag());
+	}
+	
+	private void recordLayout() {
+		if (uploadedPartLengths == null || eTag == null) {
+			// compressed or streamed, the object cannot be matched to the source
+			layoutCache.remove(s3bucketName, s3key);
+		} else {
+			layoutCache.put(s3bucketName, s3key, 
+					new ObjectLayoutCache.Layout(eTag, uploadedMultipart, uploadedPartLengths));
+		}
+	}
+	
+	/**
+	 * Upload a repeatable source in parts of the configured size, reading 
+	 * each part from the source as it is sent.
+	 */
+	private String uploadFixedParts() {
+		
+		// initialize
+		List<PartETag> partETags = new ArrayList<PartETag>();
+		final long contentLength = source.getLength();
+		long bytesUploaded = 0;
 		
 		// check if we can resume an incomplete download
-		String uploadId = getCachedUploadId();
+		String uploadId = getResumableUploadId();
+		
+		if (uploadId == null && contentLength < singlePutThreshold) {
+			// small files go up in one request
+			String location = putObject(new Part(1, 0, contentLength, null));
+			uploadedPartLengths = getPartLengths(contentLength, false);
+			uploadedMultipart = false;
+			return location;
+		}
 		
+		FileParts parts = null;
 		if (uploadId != null) {
 			// we can resume the download
 			Log.i(TAG, "resuming upload for " + uploadId);
 			
-			// get the cached etags
-			List<PartETag> cachedEtags = getCachedPartEtags();
-			partETags.addAll(cachedEtags);
-						
-			// calculate the start position for resume
-			startPartNumber = cachedEtags.size() + 1;
-			filePosition = (startPartNumber -1) * partSize;
-			bytesUploaded = filePosition;
-			
-			Log.i(TAG, "resuming at part " + startPartNumber + " position " + filePosition);
+			List<PartRecord> resumed = getResumableParts(uploadId, contentLength);
+			if (resumed != null) {
+				// parts may have completed out of order, the gaps are sent again
+				parts = new FileParts(resumed, contentLength);
+				for (PartRecord part : parts.getKeptParts()) {
+					partETags.add(part.getPartETag());
+					bytesUploaded += part.getLength();
+				}
+				
+				Log.i(TAG, "resuming with " + partETags.size() + " uploaded parts, " + bytesUploaded + " bytes");
+				
+				if (metricsListener != null) {
+					// cached parts that did not survive have to be sent again
+					Set<Integer> kept = new HashSet<Integer>();
+					for (PartETag etag : partETags) {
+						kept.add(etag.getPartNumber());
+					}
+					long resent = 0;
+					for (PartRecord part : getCachedParts()) {
+						if (!kept.contains(part.getPartNumber())) {
+							resent += part.hasRange() ? part.getLength() 
+									: getPartSize(part.getPartNumber(), contentLength);
+						}
+					}
+					metricsListener.uploadResumed(partETags.size(), bytesUploaded, resent);
+				}
+			} else {
+				// the upload no longer exists on the server so start over
+				Log.i(TAG, "upload " + uploadId + " no longer exists");
+				clearProgressCache();
+				uploadId = null;
+			}
 		
-		} else {
+		} 
+		
+		if (uploadId == null) {
 			// initiate a new multi part upload
 			Log.i(TAG, "initiating new upload");
 			
-	        InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(s3bucketName, s3key);
-	        configureInitiateRequest(initRequest);
-	        InitiateMultipartUploadResult initResponse = s3Client.initiateMultipartUpload(initRequest);
-	        uploadId = initResponse.getUploadId();
+			uploadId = initiateUpload();
+	        
+	        // cache the upload id before any parts are sent so it can always be resumed
+	        initProgressCache(uploadId);
+	        
+	        parts = new FileParts(0, 1, contentLength);
 			
 		}
 		
-		final AbortMultipartUploadRequest abortRequest = new AbortMultipartUploadRequest(s3bucketName, s3key, uploadId);
+		ProgressDispatcher dispatcher = new ProgressDispatcher(progressListener, progressExecutor, 
+				progressIntervalMillis, progressIntervalBytes, contentLength, bytesUploaded);
+		
+		// a single listener serves every part of this upload
+		ActiveUpload upload = new ActiveUpload(uploadId, dispatcher, true, bytesUploaded);
         
-        for (int k = startPartNumber; filePosition < contentLength; k++) {
-        	
-            long thisPartSize = Math.min(partSize, (contentLength - filePosition));
-            
-            Log.i(TAG, "starting file part " + k + " with size " + thisPartSize);
-            
-            UploadPartRequest uploadRequest = new UploadPartRequest().withBucketName(s3bucketName)
-                    .withKey(s3key).withUploadId(uploadId)
-                    .withPartNumber(k).withFileOffset(filePosition).withFile(file)
-                    .withPartSize(thisPartSize);
-
-            ProgressListener s3progressListener = new ProgressListener() {
-                public void progressChanged(ProgressEvent progressEvent) {
-                    
-                	// bail out if user cancelled
-                	// TODO calling shutdown too brute force?
-                    if (userInterrupted) {
-                		s3Client.shutdown(); 
-                		throw new UploadIterruptedException("User interrupted");
-                	} else if (userAborted) {
-                		// aborted requests cannot be resumed, so clear any cached etags
-                		clearProgressCache();
-                    	s3Client.abortMultipartUpload(abortRequest);
-                    	s3Client.shutdown();
-                    }
-                    
-                    bytesUploaded += progressEvent.getBytesTransfered();
-                    
-                    //Log.d(TAG, "bytesUploaded=" + bytesUploaded);
-                    
-                    // broadcast progress
-                    float fpercent = ((bytesUploaded * 100) / contentLength);
-                    int percent = Math.round(fpercent);
-                    if (progressListener != null) {
-                    	progressListener.progressChanged(progressEvent, bytesUploaded, percent);
-                    }
-                    
-                }
-            };
-            
-            uploadRequest.setProgressListener(s3progressListener);
-            
-            UploadPartResult result = s3Client.uploadPart(uploadRequest);
-            
-            partETags.add(result.getPartETag());
-            
-            // cache the part progress for this upload
-            if (k == 1) {
-            	initProgressCache(uploadId);
-            }
-            // store part etag
-            cachePartEtag(result);
-            
-            filePosition += thisPartSize;
+		try {
+			partETags.addAll(uploadParts(upload, parts));
+			checkCancelled(upload);
+		} catch (RuntimeException e) {
+			if (userAborted) {
+				discardUpload(upload);
+			}
+			throw e;
+		} finally {
+			flushProgressCache();
+		}
+		
+		String location = completeUpload(upload, partETags, contentLength);
+		uploadedPartLengths = parts.getPartLengths();
+		uploadedMultipart = true;
+		return location;
+		
+	}
+	
+	/**
+	 * Upload a source that is read through part sized buffers, either because 
+	 * it can only be read once or because it is being compressed. 
+	 * 
+	 * Compressed parts do not line up with fixed offsets in the source, so 
+	 * their source ranges are recorded and a resumed upload carries on from 
+	 * the end of the last part in an unbroken run of uploaded parts.
+	 */
+	private String uploadBuffered() {
+		
+		// the offsets of encrypted compressed parts are not recorded
+		boolean resumable = source.isRepeatable() && !(gzip && encryption != null);
+		final long contentLength = source.getLength();
+		List<PartETag> partETags = new ArrayList<PartETag>();
+		long position = 0;
+		int partNumber = 0;
+		
+		String uploadId = resumable ? getResumableUploadId() : null;
+		if (uploadId != null) {
+			Log.i(TAG, "resuming upload for " + uploadId);
+			
+			List<PartRecord> resumed = getResumableRanges(uploadId);
+			if (resumed != null) {
+				for (PartRecord part : resumed) {
+					partETags.add(part.getPartETag());
+					position = part.getPosition() + part.getLength();
+					partNumber = part.getPartNumber();
+				}
+				Log.i(TAG, "resuming with " + resumed.size() + " uploaded parts, " + position + " bytes");
+				
+				if (metricsListener != null) {
+					// cached parts after the first gap have to be sent again
+					long resent = 0;
+					for (PartRecord part : getCachedParts()) {
+						if (part.hasRange() && part.getPartNumber() > partNumber) {
+							resent += part.getLength();
+						}
+					}
+					metricsListener.uploadResumed(resumed.size(), position, resent);
+				}
+			} else {
+				Log.i(TAG, "upload " + uploadId + " no longer exists");
+				clearProgressCache();
+				uploadId = null;
+			}
+		}
+		
+		StreamParts parts = new StreamParts(position, partNumber);
+		try {
+			if (uploadId == null) {
+				Part first = parts.next();
+				if (!parts.hasNext() && first.sourceLength < singlePutThreshold) {
+					// the whole source fit in one buffer
+					return putObject(first);
+				}
+				
+				Log.i(TAG, "initiating new upload");
+				
+				uploadId = initiateUpload();
+				if (resumable) {
+					initProgressCache(uploadId);
+				}
+				parts.withFirst(first);
+			}
+			
+			ProgressDispatcher dispatcher = new ProgressDispatcher(progressListener, progressExecutor, 
+					progressIntervalMillis, progressIntervalBytes, contentLength, position);
+			ActiveUpload upload = new ActiveUpload(uploadId, dispatcher, resumable, position);
+			parts.setUpload(upload);
+			
+			try {
+				partETags.addAll(uploadParts(upload, parts));
+				checkCancelled(upload);
+			} catch (RuntimeException e) {
+				// a stream cannot be read again, so its parts are of no use
+				if (userAborted || !resumable) {
+					discardUpload(upload);
+				}
+				throw e;
+			} finally {
+				if (resumable) {
+					flushProgressCache();
+				}
+			}
+			
+			return completeUpload(upload, partETags, parts.getBytesRead());
+			
+		} finally {
+			parts.close();
+		}
+	}
+	
+	private InitiateMultipartUploadRequest newInitiateRequest() {
+        InitiateMultipartUploadRequest initRequest = new InitiateMultipartUploadRequest(s3bucketName, s3key);
+        configureInitiateRequest(initRequest);
+        if (gzip || encryption != null) {
+        	ObjectMetadata metadata = initRequest.getObjectMetadata();
+        	if (metadata == null) {
+        		metadata = new ObjectMetadata();
+        		initRequest.setObjectMetadata(metadata);
+        	}
+        	if (encryption != null) {
+        		// every new object gets its own IV
+        		uploadIv = encryption.newIv();
+        		encryption.addMetadata(metadata, uploadIv);
+        	}
+        	if (gzip && encryption == null) {
+        		metadata.setContentEncoding("gzip");
+        	} else if (gzip) {
+        		// clients would try to decompress the ciphertext
+        		metadata.addUserMetadata(GZIP_METADATA, "gzip");
+        	}
         }
+        return initRequest;
+	}
+	
+	private String initiateUpload() {
+        InitiateMultipartUploadRequest initRequest = newInitiateRequest();
+        long started = System.nanoTime();
+        InitiateMultipartUploadResult initResponse = s3Client.initiateMultipartUpload(initRequest);
+        if (metricsListener != null) {
+        	metricsListener.uploadInitiated(System.nanoTime() - started);
+        }
+        return initResponse.getUploadId();
+	}
+	
+	private void abortUpload(AbortMultipartUploadRequest abortRequest) {
+		long started = System.nanoTime();
+		s3Client.abortMultipartUpload(abortRequest);
+		if (metricsListener != null) {
+			metricsListener.uploadAborted(System.nanoTime() - started);
+		}
+	}
+	
+	/**
+	 * Abort an upload once its parts have stopped. Runs on the thread that 
+	 * called start(), so part threads never make requests of their own to 
+	 * tear the upload down.
+	 */
+	private void discardUpload(ActiveUpload upload) {
+		upload.cancel();
+		// a part still sending when the abort arrives could otherwise survive it
+		upload.awaitIdle();
+		if (upload.resumable) {
+			// aborted uploads cannot be resumed, so clear any cached etags
+			clearProgressCache();
+		}
+		try {
+			abortUpload(upload.abortRequest);
+		} catch (AmazonClientException e) {
+			Log.w(TAG, "unable to abort upload " + upload.uploadId, e);
+		}
+	}
+	
+	private String completeUpload(ActiveUpload upload, List<PartETag> partETags, long contentLength) {
+		
+		// parts must be listed in ascending order when completing
+		Collections.sort(partETags, PART_NUMBER_ORDER);
         
         CompleteMultipartUploadRequest compRequest = new CompleteMultipartUploadRequest(
-        		s3bucketName, s3key, uploadId,
+        		s3bucketName, s3key, upload.uploadId,
                 partETags);
 
+        long started = System.nanoTime();
         CompleteMultipartUploadResult result = s3Client.completeMultipartUpload(compRequest);
-        bytesUploaded = 0;
+        if (metricsListener != null) {
+        	metricsListener.uploadCompleted(System.nanoTime() - started);
+        }
+        upload.completed(contentLength);
         
-        Log.i(TAG, "upload complete for " + uploadId);
+        Log.i(TAG, "upload complete for " + upload.uploadId);
         
-        clearProgressCache();
+        if (upload.resumable) {
+        	clearProgressCache();
+        }
+        
+        if (verifyIntegrity) {
+        	verifyObjectETag(partETags, result.getETag());
+        }
  
+        eTag = DigestUtils.unquote(result.getETag());
         return result.getLocation();
-		
-	}
-
-	private String getCachedUploadId() {
-		return prefs.getString(s3key + PREFS_UPLOAD_ID, null);
 	}
 	
-	private List<PartETag> getCachedPartEtags() {
-		List<PartETag> result = new ArrayList<PartETag>();		
-		// get the cached etags
-		ArrayList<String> etags = SharedPreferencesUtils.getStringArrayPref(prefs, s3key + PREFS_ETAGS);
-		for (String etagString : etags) {
-			String partNum = etagString.substring(0, etagString.indexOf(PREFS_ETAG_SEP));
-			String partTag = etagString.substring(etagString.indexOf(PREFS_ETAG_SEP) + 2, etagString.length());
-						
-			PartETag etag = new PartETag(Integer.parseInt(partNum), partTag);
-			result.add(etag);
+	/**
+	 * Check the completed object against the part digests. 
+	 * 
+	 * Each part ETag has already been checked by the SDK against the MD5 it 
+	 * computed while streaming that part, so this confirms S3 assembled the 
+	 * object from exactly those parts without reading the file again.
+	 */
+	private void verifyObjectETag(List<PartETag> partETags, String objectETag) {
+		String expectedETag = DigestUtils.multipartETag(partETags);
+		if (expectedETag == null || objectETag == null) {
+			Log.w(TAG, "unable to verify " + s3key + ", ETags are not MD5 digests");
+		} else if (!expectedETag.equalsIgnoreCase(DigestUtils.unquote(objectETag))) {
+			throw new AmazonClientException("Unable to verify integrity of " + s3key 
+					+ ", expected ETag " + expectedETag + " but S3 returned " + objectETag);
 		}
-		return result;
 	}
-
-	private void cachePartEtag(UploadPartResult result) {
-		String serialEtag = result.getPartETag().getPartNumber() + PREFS_ETAG_SEP + result.getPartETag().getETag();
-		ArrayList<String> etags = SharedPreferencesUtils.getStringArrayPref(prefs, s3key + PREFS_ETAGS);
-		etags.add(serialEtag);
-		SharedPreferencesUtils.setStringArrayPref(prefs, s3key + PREFS_ETAGS, etags);
+	
+	private String putObject(Part part) {
+		
+		Log.i(TAG, "uploading " + part.size + " bytes in a single request");
+		
+		// give the object the same settings a multipart upload would get
+		InitiateMultipartUploadRequest initRequest = newInitiateRequest();
+		
+		ObjectMetadata metadata = initRequest.getObjectMetadata();
+		if (metadata == null) {
+			metadata = new ObjectMetadata();
+		}
+		metadata.setContentLength(part.size);
+		
+		ProgressDispatcher dispatcher = new ProgressDispatcher(progressListener, progressExecutor, 
+				progressIntervalMillis, progressIntervalBytes, part.sourceLength, 0);
+		ActiveUpload upload = new ActiveUpload(null, dispatcher, false, 0);
+		
+		PutObjectRequest putRequest = new PutObjectRequest(s3bucketName, s3key, openPartStream(part, upload), metadata);
+		putRequest.setCannedAcl(initRequest.getCannedACL());
+		putRequest.setAccessControlList(initRequest.getAccessControlList());
+		if (initRequest.getStorageClass() != null) {
+			putRequest.setStorageClass(initRequest.getStorageClass());
+		}
+		putRequest.setMetadata(metadata);
+		putRequest.setProgressListener(new PartAttemptProgress(upload, part));
+		
+		long started = System.nanoTime();
+		PutObjectResult result;
+		try {
+			result = s3Client.putObject(putRequest);
+		} catch (RuntimeException e) {
+			if (isCancelled(upload)) {
+				throw cancellation(e);
+			}
+			throw e;
+		}
+		if (metricsListener != null) {
+			metricsListener.partUploaded(part.number, part.size, System.nanoTime() - started);
+		}
+		upload.completed(part.sourceLength);
+		eTag = DigestUtils.unquote(result.getETag());
+		
+		Log.i(TAG, "upload complete for " + s3key);
+		
+		return s3Client.getResourceUrl(s3bucketName, s3key);
 	}
-
-	private void initProgressCache(String uploadId) {
-		// store uploadID
-		Editor edit = prefs.edit().putString(s3key + PREFS_UPLOAD_ID, uploadId);
-		SharedPreferencesCompat.apply(edit);
-		// create empty etag array
-		ArrayList<String> etags = new ArrayList<String>();
-		SharedPreferencesUtils.setStringArrayPref(prefs, s3key + PREFS_ETAGS, etags);
+	
+	private List<PartETag> uploadParts(ActiveUpload upload, Iterator<Part> parts) {
+		if ((getMaxConcurrency() > 1 || partExecutor != null) && parts.hasNext()) {
+			return uploadPartsConcurrently(upload, parts);
+		}
+		List<PartETag> result = new ArrayList<PartETag>();
+		while (parts.hasNext()) {
+			result.add(uploadPart(upload, parts.next()));
+		}
+		return result;
 	}
-
-	private void clearProgressCache() {
-		// clear the cached uploadId and etags
-        Editor edit = prefs.edit();
-        edit.remove(s3key + PREFS_UPLOAD_ID);
-        edit.remove(s3key + PREFS_ETAGS);
-    	SharedPreferencesCompat.apply(edit);
+	
+	private List<PartETag> uploadPartsConcurrently(final ActiveUpload upload, Iterator<Part> nextParts) {
+		
+		List<PartETag> result = new ArrayList<PartETag>();
+		ExecutorService ownExecutor = null;
+		Executor executor = partExecutor;
+		if (executor == null) {
+			ownExecutor = Executors.newFixedThreadPool(getMaxConcurrency());
+			executor = ownExecutor;
+		}
+		CompletionService<PartETag> completionService = new ExecutorCompletionService<PartETag>(executor);
+		List<Future<PartETag>> submitted = new ArrayList<Future<PartETag>>();
+		int inFlight = 0;
+		boolean completed = false;
+		
+		try {
+			// keep the window full, submitting the next as each one completes
+			while (inFlight < getWindow() && nextParts.hasNext()) {
+				submitted.add(submitPart(completionService, upload, nextParts.next()));
+				inFlight++;
+			}
+			
+			// collect parts as they complete, bailing out on the first failure
+			while (inFlight > 0) {
+				Future<PartETag> future = completionService.take();
+				inFlight--;
+				try {
+					result.add(future.get());
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					if (cause instanceof RuntimeException) {
+						throw (RuntimeException) cause;
+					} else if (cause instanceof Error) {
+						throw (Error) cause;
+					}
+					throw new AmazonClientException("Part upload failed", cause);
+				}
+				// the window may have grown or shrunk since
+				while (inFlight < getWindow() && nextParts.hasNext()) {
+					submitted.add(submitPart(completionService, upload, nextParts.next()));
+					inFlight++;
+				}
+			}
+			completed = true;
+			
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new UploadIterruptedException("Upload thread interrupted", e);
+		} finally {
+			if (!completed) {
+				// stop the other in-flight parts at their next read, and drop queued ones
+				upload.cancel();
+				for (Future<PartETag> future : submitted) {
+					future.cancel(false);
+				}
+				// parts still unwinding must not touch the resume store or the source after we return
+				upload.awaitIdle();
+			}
+			if (ownExecutor != null) {
+				// interrupting the part threads would close the shared file channel
+				ownExecutor.shutdown();
+			}
+		}
+		
+		return result;
 	}
 	
-	public void interrupt() {
-		userInterrupted = true;
+	private Future<PartETag> submitPart(CompletionService<PartETag> completionService, 
+			final ActiveUpload upload, final Part part) {
+		return completionService.submit(new Callable<PartETag>() {
+			public PartETag call() throws Exception {
+				if (!upload.partStarted()) {
+					part.release();
+					throw cancellation(null);
+				}
+				try {
+					return uploadPart(upload, part);
+				} finally {
+					upload.partFinished();
+				}
+			}
+		});
 	}
 	
-	public void abort() {
-		userAborted = true;
+	private PartETag uploadPart(ActiveUpload upload, Part part) {
+		
+		UploadPartRequest uploadRequest = new UploadPartRequest().withBucketName(s3bucketName)
+				.withKey(s3key).withUploadId(upload.uploadId)
+				.withPartNumber(part.number).withPartSize(part.size);
+		
+		UploadPartResult result;
+		try {
+			checkCancelled(upload);
+			for (int attempt = 1; ; attempt++) {
+				
+				Log.i(TAG, "starting file part " + part.number + " with size " + part.size 
+						+ (attempt > 1 ? ", attempt " + attempt : ""));
+				
+				PartAttemptProgress attemptProgress = new PartAttemptProgress(upload, part);
+				uploadRequest.setProgressListener(attemptProgress);
+				// the SDK closes the stream after each attempt
+				uploadRequest.setInputStream(openPartStream(part, upload));
+				
+				long started = System.nanoTime();
+				try {
+					result = s3Client.uploadPart(uploadRequest);
+					long latency = System.nanoTime() - started;
+					if (metricsListener != null) {
+						metricsListener.partUploaded(part.number, part.size, latency);
+					}
+					if (partSizer != null) {
+						partSizer.partCompleted(part.size, latency);
+					}
+					if (concurrencyController != null) {
+						concurrencyController.partCompleted(part.size, latency);
+					}
+					break;
+				} catch (RuntimeException e) {
+					upload.partFailed(attemptProgress.bytes);
+					if (!isCancelled(upload)) {
+						if (partSizer != null) {
+							partSizer.partFailed();
+						}
+						if (concurrencyController != null) {
+							concurrencyController.partFailed(System.nanoTime() - started);
+						}
+					}
+					if (isCancelled(upload)) {
+						throw cancellation(e);
+					} else if (!retryPolicy.shouldRetry(e, attempt)) {
+						throw e;
+					}
+					long delay = retryPolicy.getDelayMillis(attempt);
+					retryCount.incrementAndGet();
+					if (metricsListener != null) {
+						metricsListener.partRetried(part.number, attempt, attemptProgress.sent);
+					}
+					Log.w(TAG, "part " + part.number + " failed, retrying in " + delay + "ms", e);
+					if (retryListener != null) {
+						retryListener.partRetrying(part.number, attempt, delay, e);
+					}
+					sleepBeforeRetry(upload, delay);
+				}
+			}
+		} finally {
+			part.release();
+		}
+		
+		// store part etag
+		if (upload.resumable) {
+			cachePart(part, result.getPartETag());
+		}
+		
+		return result.getPartETag();
 	}
 	
 	/**
-	 * Override to configure the multipart upload request. 
-	 * 
-	 * By default uploaded files are publicly readable.
-	 * 
-	 * @param initRequest S3 request object for the file to be uploaded
+	 * Open the body of a part. Every read checks for cancellation, so a 
+	 * cancelled part stops at its next read without touching the client.
 	 */
-	protected void configureInitiateRequest(InitiateMultipartUploadRequest initRequest) {
-		initRequest.setCannedACL(CannedAccessControlList.PublicRead);
+	private InputStream openPartStream(Part part, ActiveUpload upload) {
+		InputStream in;
+		if (part.buffer != null) {
+			in = new ByteArrayInputStream(part.buffer, 0, (int) part.size);
+		} else {
+			try {
+				in = source.openRange(part.position, part.size);
+			} catch (IOException e) {
+				throw new AmazonClientException("Unable to read upload source", e);
+			}
+		}
+		if (encryption != null) {
+			in = encryption.encrypt(in, uploadIv, part.offset);
+		}
+		if (bandwidthLimiter != null) {
+			in = new ThrottledInputStream(in, bandwidthLimiter, upload);
+		}
+		return new CancellableInputStream(in, upload);
 	}
 	
-	public void setPrefs(SharedPreferences prefs) {
-		this.prefs = prefs;
+	private boolean isCancelled(ActiveUpload upload) {
+		return userInterrupted || userAborted || upload.cancelled;
 	}
 	
-	public long getPartSize() {
-		return partSize;
+	private void checkCancelled(ActiveUpload upload) {
+		if (isCancelled(upload)) {
+			throw cancellation(null);
+		}
 	}
-
-	public void setPartSize(long partSize) {
-		if (partSize < MIN_DEFAULT_PART_SIZE) {
-			throw new IllegalStateException("Part size is less than S3 minimum of " + MIN_DEFAULT_PART_SIZE);
-		} else {
-			this.partSize = partSize;
-		}	
+	
+	private UploadIterruptedException cancellation(Throwable cause) {
+		String reason = userAborted ? "User aborted" 
+				: userInterrupted ? "User interrupted" : "Sibling part failed";
+		return new UploadIterruptedException(reason, cause);
 	}
 	
-	public void setProgressListener(UploadProgressListener progressListener) {
-		this.progressListener = progressListener;
+	private void sleepBeforeRetry(ActiveUpload upload, long delayMillis) {
+		long end = System.currentTimeMillis() + delayMillis;
+		synchronized (cancelLock) {
+			long remaining = delayMillis;
+			while (remaining > 0 && !isCancelled(upload)) {
+				try {
+					cancelLock.wait(remaining);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new UploadIterruptedException("Upload thread interrupted", e);
+				}
+				remaining = end - System.currentTimeMillis();
+			}
+		}
+		checkCancelled(upload);
 	}
-
-	public interface UploadProgressListener {
-		public void progressChanged(ProgressEvent progressEvent, long bytesUploaded, int percentUploaded);
+	
+	/**
+	 * A part of the source, either a range to be read when it is sent or 
+	 * data already read into a pooled buffer. A compressed part covers more 
+	 * of the source than the bytes it sends.
+	 */
+	private static class Part {
+		
+		final int number;
+		final long position;
+		final long sourceLength;
+		final long size;
+		// offset in the object, which differs from the position for compressed parts
+		long offset;
+		byte[] buffer;
+		BufferPool pool;
+		
+		Part(int number, long position, long size, BufferPool pool) {
+			this(number, position, size, size, pool);
+		}
+		
+		Part(int number, long position, long sourceLength, long size, BufferPool pool) {
+			this.number = number;
+			this.position = position;
+			this.sourceLength = sourceLength;
+			this.size = size;
+			this.pool = pool;
+			this.offset = position;
+		}
+		
+		void release() {
+			if (pool != null) {
+				pool.release(buffer);
+				pool = null;
+				buffer = null;
+			}
+		}
+		
+	}
+	
+	/**
+	 * Cuts a repeatable source into parts as they are needed, so the size of 
+	 * each part can follow the part sizer. 
+	 * 
+	 * A resumed upload first sends the gaps between the parts it kept, reusing 
+	 * the part numbers of the parts that were lost, then carries on after the 
+	 * last kept part.
+	 */
+	private class FileParts implements Iterator<Part> {
+		
+		private final long contentLength;
+		private final List<PartRecord> keptParts = new ArrayList<PartRecord>();
+		private final List<Part> gapParts = new ArrayList<Part>();
+		// length of every part of the object by part number
+		private final Map<Integer, Long> partLengths = new TreeMap<Integer, Long>();
+		private long position;
+		private int partNumber;
+		
+		/**
+		 * @param position source offset of the first part
+		 * @param partNumber number of the first part
+		 */
+		FileParts(long position, int partNumber, long contentLength) {
+			this.position = position;
+			this.partNumber = partNumber;
+			this.contentLength = contentLength;
+		}
+		
+		/**
+		 * @param resumed parts already uploaded, in part number order
+		 */
+		FileParts(List<PartRecord> resumed, long contentLength) {
+			this(0, 1, contentLength);
+			for (PartRecord part : resumed) {
+				int numbers = part.getPartNumber() - partNumber;
+				if (part.getPosition() < position || (part.getPosition() > position && numbers == 0)) {
+					// overlaps, or leaves a gap with no part number to fill it
+					continue;
+				}
+				if (part.getPosition() > position) {
+					addGap(part.getPosition() - position, numbers);
+				}
+				keptParts.add(part);
+				partLengths.put(part.getPartNumber(), part.getLength());
+				position = part.getPosition() + part.getLength();
+				partNumber = part.getPartNumber() + 1;
+			}
+		}
+		
+		private void addGap(long length, int numbers) {
+			// gaps were whole parts, so they split into parts of at least the minimum
+			int count = (int) Math.max(1, Math.min(numbers, length / MIN_DEFAULT_PART_SIZE));
+			long size = length / count;
+			for (int i = 0; i < count; i++) {
+				long partLength = i < count - 1 ? size : length - size * (count - 1);
+				gapParts.add(new Part(partNumber + i, position, partLength, null));
+				partLengths.put(partNumber + i, partLength);
+				position += partLength;
+			}
+		}
+		
+		List<PartRecord> getKeptParts() {
+			return keptParts;
+		}
+		
+		/**
+		 * @return the lengths of every part so far, in part number order
+		 */
+		long[] getPartLengths() {
+			long[] lengths = new long[partLengths.size()];
+			int i = 0;
+			for (long length : partLengths.values()) {
+				lengths[i++] = length;
+			}
+			return lengths;
+		}
+		
+		public boolean hasNext() {
+			return !gapParts.isEmpty() || position < contentLength;
+		}
+		
+		public Part next() {
+			if (!gapParts.isEmpty()) {
+				return gapParts.remove(0);
+			}
+			if (position >= contentLength) {
+				throw new NoSuchElementException();
+			}
+			long remaining = contentLength - position;
+			int partsLeft = MAX_PART_COUNT - partNumber + 1;
+			if (partsLeft < 1) {
+				throw new AmazonClientException("Upload needs more than " + MAX_PART_COUNT + " parts");
+			}
+			long size = partSizer != null ? partSizer.getPartSize() : partSize;
+			// leave room for the rest of the source in the parts that are left
+			size = Math.max(size, (remaining + partsLeft - 1) / partsLeft);
+			size = Math.min(Math.min(size, MAX_PART_SIZE), remaining);
+			Part part = new Part(partNumber, position, size, null);
+			partLengths.put(partNumber, size);
+			partNumber++;
+			position += size;
+			return part;
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+	}
+	
+	/**
+	 * Reads the source into parts, one buffer ahead of the parts in flight, 
+	 * compressing each part as a separate gzip member when enabled. Blocks 
+	 * until a buffer is released when all of them are in use.
+	 */
+	private class StreamParts implements Iterator<Part> {
+		
+		// fixed, since buffers are allocated up front
+		private final long partSize = getFixedPartSize(source.getLength());
+		private final InputStream in;
+		private final BufferPool pool;
+		private final Deflater deflater;
+		private final CRC32 crc;
+		private final byte[] input;
+		private ActiveUpload upload;
+		private Part first;
+		private Part next;
+		private int partNumber;
+		private long bytesRead;
+		// compressed bytes read in this run
+		private long bytesCompressed;
+		private boolean eof = false;
+		
+		/**
+		 * @param position source offset to start reading from
+		 * @param partNumber number of the part before the first one to read
+		 */
+		StreamParts(long position, int partNumber) {
+			this.bytesRead = position;
+			this.partNumber = partNumber;
+			
+			if (partSize + (gzip ? GZIP_BUFFER_SLACK : 0) > Integer.MAX_VALUE) {
+				throw new IllegalStateException("Part size is too large to buffer");
+			}
+			// one buffer per part in flight, plus one being filled
+			if (gzip) {
+				pool = new BufferPool((int) partSize + GZIP_BUFFER_SLACK, getMaxConcurrency() + 1);
+				deflater = new Deflater(gzipLevel, true);
+				crc = new CRC32();
+				input = new byte[GZIP_INPUT_SIZE];
+			} else {
+				pool = new BufferPool((int) partSize, getMaxConcurrency() + 1);
+				deflater = null;
+				crc = null;
+				input = null;
+			}
+			
+			try {
+				if (source.isRepeatable()) {
+					in = source.openRange(position, source.getLength() - position);
+				} else {
+					in = source.openStream();
+				}
+			} catch (IOException e) {
+				throw new AmazonClientException("Unable to read upload source", e);
+			}
+		}
+		
+		private void checkReadCancelled() {
+			if (upload != null) {
+				checkCancelled(upload);
+			} else if (userInterrupted || userAborted) {
+				throw cancellation(null);
+			}
+		}
+		
+		void setUpload(ActiveUpload upload) {
+			this.upload = upload;
+			if (eof) {
+				upload.dispatcher.setContentLength(bytesRead);
+			}
+		}
+		
+		/**
+		 * Put back a part already taken so iteration starts from it.
+		 */
+		void withFirst(Part first) {
+			this.first = first;
+		}
+		
+		/**
+		 * @return the source offset reached so far
+		 */
+		long getBytesRead() {
+			return bytesRead;
+		}
+		
+		void close() {
+			if (deflater != null) {
+				deflater.end();
+			}
+			try {
+				in.close();
+			} catch (IOException e) {
+				// ignore
+			}
+		}
+		
+		public boolean hasNext() {
+			if (first != null || next != null) {
+				return true;
+			}
+			if (eof) {
+				return false;
+			}
+			next = readPart();
+			return next != null;
+		}
+		
+		public Part next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			Part part;
+			if (first != null) {
+				part = first;
+				first = null;
+			} else {
+				part = next;
+				next = null;
+			}
+			return part;
+		}
+		
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
+		
+		private Part readPart() {
+			checkReadCancelled();
+			byte[] buffer;
+			try {
+				// cancelled parts release their buffers as they unwind
+				buffer = pool.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UploadIterruptedException("Upload thread interrupted", e);
+			}
+			try {
+				checkReadCancelled();
+			} catch (RuntimeException e) {
+				pool.release(buffer);
+				throw e;
+			}
+			long position = bytesRead;
+			int length;
+			boolean overflow = false;
+			try {
+				length = deflater == null ? fill(buffer) : compress(buffer);
+				// the last part S3 allows, so anything left can't be sent
+				if (!eof && partNumber + 1 >= MAX_PART_COUNT) {
+					overflow = in.read() >= 0;
+					eof = !overflow;
+				}
+			} catch (IOException e) {
+				pool.release(buffer);
+				throw new AmazonClientException("Unable to read upload source", e);
+			}
+			if (overflow) {
+				pool.release(buffer);
+				throw new AmazonClientException("Upload needs more than " + MAX_PART_COUNT + " parts");
+			}
+			long sourceLength = bytesRead - position;
+			if (eof) {
+				if (upload != null) {
+					upload.dispatcher.setContentLength(bytesRead);
+				}
+				if (sourceLength == 0 && partNumber > 0) {
+					// the previous part ended exactly at the end of the source, 
+					// the first part is sent even if the source is empty
+					pool.release(buffer);
+					return null;
+				}
+			}
+			Part part = new Part(++partNumber, position, sourceLength, length, pool);
+			part.buffer = buffer;
+			if (deflater != null) {
+				part.offset = bytesCompressed;
+				bytesCompressed += length;
+			}
+			return part;
+		}
+		
+		private int fill(byte[] buffer) throws IOException {
+			int length = 0;
+			while (length < buffer.length) {
+				int n = in.read(buffer, length, buffer.length - length);
+				if (n < 0) {
+					eof = true;
+					break;
+				}
+				length += n;
+				bytesRead += n;
+			}
+			return length;
+		}
+		
+		/**
+		 * Compress source data into the buffer as a complete gzip member until 
+		 * it holds at least a part's worth of compressed bytes.
+		 */
+		private int compress(byte[] buffer) throws IOException {
+			deflater.reset();
+			crc.reset();
+			
+			// header: magic, deflate, no flags, no mtime, no extra flags, unknown OS
+			int length = 0;
+			buffer[length++] = (byte) 0x1f;
+			buffer[length++] = (byte) 0x8b;
+			buffer[length++] = Deflater.DEFLATED;
+			for (int i = 0; i < 6; i++) {
+				buffer[length++] = 0;
+			}
+			buffer[length++] = (byte) 0xff;
+			
+			long sourceLength = 0;
+			while (length < partSize) {
+				int n = in.read(input);
+				if (n < 0) {
+					eof = true;
+					break;
+				}
+				crc.update(input, 0, n);
+				sourceLength += n;
+				bytesRead += n;
+				deflater.setInput(input, 0, n);
+				while (!deflater.needsInput()) {
+					length = deflate(buffer, length);
+				}
+			}
+			deflater.finish();
+			while (!deflater.finished()) {
+				length = deflate(buffer, length);
+			}
+			
+			// trailer: CRC-32 and uncompressed size, little endian
+			length = writeIntLE(buffer, length, crc.getValue());
+			length = writeIntLE(buffer, length, sourceLength);
+			return length;
+		}
+		
+		private int deflate(byte[] buffer, int length) {
+			// keep room for the trailer
+			int room = buffer.length - 8 - length;
+			if (room <= 0) {
+				throw new AmazonClientException("Compressed part does not fit in its buffer");
+			}
+			return length + deflater.deflate(buffer, length, room);
+		}
+		
+		private int writeIntLE(byte[] buffer, int offset, long value) {
+			for (int i = 0; i < 4; i++) {
+				buffer[offset++] = (byte) (value >>> (8 * i));
+			}
+			return offset;
+		}
+		
+	}
+	
+	/**
+	 * Listener shared by every part of an upload. It checks for cancellation, 
+	 * keeps the byte count and feeds the progress dispatcher.
+	 * 
+	 * Cancelling only stops this upload's own requests, the shared client and 
+	 * its connections are left alone.
+	 */
+	private class ActiveUpload implements ProgressListener, Cancellable {
+		
+		final String uploadId;
+		final AbortMultipartUploadRequest abortRequest;
+		final ProgressDispatcher dispatcher;
+		// whether part ETags are kept in the resume store
+		final boolean resumable;
+		final AtomicLong bytesUploaded;
+		volatile boolean cancelled = false;
+		private int runningParts = 0;
+		
+		ActiveUpload(String uploadId, ProgressDispatcher dispatcher, boolean resumable, long bytesUploaded) {
+			this.uploadId = uploadId;
+			this.abortRequest = uploadId == null ? null 
+					: new AbortMultipartUploadRequest(s3bucketName, s3key, uploadId);
+			this.dispatcher = dispatcher;
+			this.resumable = resumable;
+			this.bytesUploaded = new AtomicLong(bytesUploaded);
+		}
+		
+		public void progressChanged(ProgressEvent progressEvent) {
+			
+			// bail out if cancelled, the request fails without being retried
+			if (isCancelled()) {
+				throw cancellation(null);
+			}
+			
+			long uploaded = bytesUploaded.addAndGet(progressEvent.getBytesTransfered());
+			
+			//Log.d(TAG, "bytesUploaded=" + uploaded);
+			
+			// broadcast progress, throttled by the dispatcher
+			dispatcher.progressChanged(progressEvent.getEventCode(), uploaded);
+			
+		}
+		
+		public boolean isCancelled() {
+			return Uploader.this.isCancelled(this);
+		}
+		
+		/**
+		 * Stop the parts of this upload at their next read or progress event.
+		 */
+		void cancel() {
+			synchronized (this) {
+				cancelled = true;
+			}
+			wakeWaiters();
+		}
+		
+		/**
+		 * @return false if the upload was cancelled before the part could start
+		 */
+		synchronized boolean partStarted() {
+			if (cancelled) {
+				return false;
+			}
+			runningParts++;
+			return true;
+		}
+		
+		synchronized void partFinished() {
+			runningParts--;
+			notifyAll();
+		}
+		
+		/**
+		 * Wait for parts running on other threads to unwind.
+		 */
+		synchronized void awaitIdle() {
+			while (runningParts > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+		
+		/**
+		 * Take back the bytes counted for a failed part attempt.
+		 */
+		void partFailed(long bytes) {
+			dispatcher.partFailed(bytesUploaded.addAndGet(-bytes));
+		}
+		
+		void completed(long contentLength) {
+			dispatcher.setContentLength(contentLength);
+			dispatcher.completed(contentLength);
+		}
+		
+	}
+	
+	/**
+	 * Counts the bytes sent by a single part attempt so they can be taken 
+	 * back if the attempt fails. 
+	 * 
+	 * Progress is counted in source bytes, so the bytes sent for a compressed 
+	 * part are scaled to the share of the source they cover.
+	 */
+	private static class PartAttemptProgress implements ProgressListener {
+		
+		private final ProgressListener uploadProgress;
+		private final Part part;
+		private long sent = 0;
+		private long bytes = 0;
+		
+		PartAttemptProgress(ProgressListener uploadProgress, Part part) {
+			this.uploadProgress = uploadProgress;
+			this.part = part;
+		}
+		
+		public void progressChanged(ProgressEvent progressEvent) {
+			long sent = this.sent + progressEvent.getBytesTransfered();
+			long counted = sent;
+			if (part.size != part.sourceLength) {
+				counted = sent >= part.size ? part.sourceLength 
+						: (long) ((double) sent * part.sourceLength / part.size);
+			}
+			if (counted - bytes != progressEvent.getBytesTransfered()) {
+				int eventCode = progressEvent.getEventCode();
+				progressEvent = new ProgressEvent((int) (counted - bytes));
+				progressEvent.setEventCode(eventCode);
+			}
+			uploadProgress.progressChanged(progressEvent);
+			this.sent = sent;
+			bytes = counted;
+		}
+		
+	}
+	
+	/**
+	 * Work out which parts of an existing upload can be kept. 
+	 * 
+	 * The server's part listing is authoritative, so parts that finished after 
+	 * the last cache write are not sent again when their source range can be 
+	 * worked out: from the fixed layout without a part sizer, or as following 
+	 * straight on from a part already kept with one. The source range of such 
+	 * a part is read to check that it has the listed ETag. Listed parts with 
+	 * no known range are kept only if cached. If the listing cannot be 
+	 * fetched the cached ETags are used instead.
+	 * 
+	 * @return the parts to keep, or null if the upload no longer exists
+	 */
+	private List<PartRecord> getResumableParts(String uploadId, long contentLength) {
+		
+		Map<Integer, PartRecord> cached = new TreeMap<Integer, PartRecord>();
+		for (PartRecord part : getCachedParts()) {
+			if (!part.hasRange()) {
+				// recorded before part ranges were kept, when all parts were one size
+				int k = part.getPartNumber();
+				part = new PartRecord(k, part.getETag(), 
+						(k - 1) * getFixedPartSize(contentLength), getPartSize(k, contentLength));
+			}
+			if (part.getLength() > 0 && part.getPosition() + part.getLength() <= contentLength) {
+				cached.put(part.getPartNumber(), part);
+			}
+		}
+		
+		Map<Integer, PartSummary> uploaded;
+		try {
+			uploaded = listUploadedParts(uploadId);
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() == 404) {
+				return null;
+			}
+			Log.w(TAG, "unable to list parts for " + uploadId + ", using cached etags", e);
+			return new ArrayList<PartRecord>(cached.values());
+		}
+		
+		List<PartRecord> parts = new ArrayList<PartRecord>();
+		int partCount = getPartCount(contentLength);
+		PartRecord previous = null;
+		for (PartSummary summary : uploaded.values()) {
+			int k = summary.getPartNumber();
+			long size = summary.getSize();
+			PartRecord part = cached.get(k);
+			// a cached part that was replaced has to be sent again
+			if (part != null && (size != part.getLength() || !DigestUtils.unquote(summary.getETag())
+					.equalsIgnoreCase(DigestUtils.unquote(part.getETag())))) {
+				part = null;
+			}
+			if (part == null) {
+				long position = -1;
+				if (partSizer == null) {
+					if (k <= partCount && size == getPartSize(k, contentLength)) {
+						position = (k - 1) * getFixedPartSize(contentLength);
+					}
+				} else if (previous != null && previous.getPartNumber() == k - 1) {
+					position = previous.getPosition() + previous.getLength();
+				}
+				if (position >= 0 && size > 0 && position + size <= contentLength 
+						&& rangeHasETag(position, size, summary.getETag())) {
+					part = new PartRecord(k, summary.getETag(), position, size);
+				}
+			}
+			if (part != null) {
+				parts.add(part);
+			}
+			previous = part;
+		}
+		return parts;
+	}
+	
+	/**
+	 * @return whether a source range has the given ETag once sent as a part
+	 */
+	private boolean rangeHasETag(long position, long length, String eTag) {
+		MessageDigest digest = DigestUtils.newMd5();
+		byte[] buffer = new byte[FINGERPRINT_BUFFER_SIZE];
+		try {
+			InputStream in = source.openRange(position, length);
+			if (encryption != null) {
+				in = encryption.encrypt(in, uploadIv, position);
+			}
+			try {
+				int n;
+				while ((n = in.read(buffer)) != -1) {
+					if (userInterrupted || userAborted) {
+						throw cancellation(null);
+					}
+					digest.update(buffer, 0, n);
+				}
+			} finally {
+				in.close();
+			}
+		} catch (IOException e) {
+			throw new AmazonClientException("Unable to read upload source", e);
+		}
+		return DigestUtils.toHex(digest.digest()).equalsIgnoreCase(DigestUtils.unquote(eTag));
+	}
+	
+	/**
+	 * Work out which parts of an existing buffered upload can be kept. 
+	 * 
+	 * Only the unbroken run of cached parts from the start of the source that 
+	 * S3 still holds is kept, since the source range of a part that was in 
+	 * flight when the upload stopped is not known.
+	 * 
+	 * @return the parts to keep in order, or null if the upload no longer exists
+	 */
+	private List<PartRecord> getResumableRanges(String uploadId) {
+		
+		Map<Integer, PartSummary> uploaded = null;
+		try {
+			uploaded = listUploadedParts(uploadId);
+		} catch (AmazonServiceException e) {
+			if (e.getStatusCode() == 404) {
+				return null;
+			}
+			Log.w(TAG, "unable to list parts for " + uploadId + ", using cached etags", e);
+		}
+		
+		Map<Integer, PartRecord> cached = new TreeMap<Integer, PartRecord>();
+		for (PartRecord part : getCachedParts()) {
+			if (part.hasRange()) {
+				cached.put(part.getPartNumber(), part);
+			}
+		}
+		
+		List<PartRecord> result = new ArrayList<PartRecord>();
+		long position = 0;
+		for (int k = 1; cached.containsKey(k); k++) {
+			PartRecord part = cached.get(k);
+			if (part.getPosition() != position) {
+				break;
+			}
+			if (uploaded != null) {
+				PartSummary summary = uploaded.get(k);
+				if (summary == null || !DigestUtils.unquote(summary.getETag())
+						.equalsIgnoreCase(DigestUtils.unquote(part.getETag()))) {
+					break;
+				}
+			}
+			result.add(part);
+			position += part.getLength();
+		}
+		return result;
+	}
+	
+	/**
+	 * @return the parts S3 holds for the upload by part number
+	 */
+	private Map<Integer, PartSummary> listUploadedParts(String uploadId) {
+		Map<Integer, PartSummary> parts = new TreeMap<Integer, PartSummary>();
+		ListPartsRequest listRequest = new ListPartsRequest(s3bucketName, s3key, uploadId);
+		PartListing listing;
+		do {
+			listing = s3Client.listParts(listRequest);
+			for (PartSummary part : listing.getParts()) {
+				parts.put(part.getPartNumber(), part);
+			}
+			listRequest.setPartNumberMarker(listing.getNextPartNumberMarker());
+		} while (listing.isTruncated());
+		return parts;
+	}
+	
+	/**
+	 * @return the configured part size, raised if needed to fit a source of 
+	 * the given length in S3's part count limit
+	 */
+	private long getFixedPartSize(long contentLength) {
+		if (contentLength == UploadSource.UNKNOWN_LENGTH) {
+			return partSize;
+		}
+		return Math.max(partSize, (contentLength + MAX_PART_COUNT - 1) / MAX_PART_COUNT);
+	}
+	
+	private int getPartCount(long contentLength) {
+		long size = getFixedPartSize(contentLength);
+		return (int) ((contentLength + size - 1) / size);
+	}
+	
+	private long getPartSize(int partNumber, long contentLength) {
+		long size = getFixedPartSize(contentLength);
+		long filePosition = (partNumber - 1) * size;
+		return Math.max(0, Math.min(size, contentLength - filePosition));
+	}
+
+	/**
+	 * Compressed uploads keep their resume state apart from plain uploads of 
+	 * the same key, since their parts cannot be mixed.
+	 */
+	private String getResumeKey() {
+		return s3bucketName + "/" + getLegacyResumeKey();
+	}
+	
+	/**
+	 * @return the key older versions kept resume state under, without the bucket
+	 */
+	private String getLegacyResumeKey() {
+		return gzip ? s3key + GZIP_RESUME_SUFFIX : s3key;
+	}
+	
+	/**
+	 * @return the object key of an upload recorded under a resume key by an 
+	 * older version
+	 */
+	static String getS3Key(String resumeKey) {
+		return resumeKey.endsWith(GZIP_RESUME_SUFFIX) 
+				? resumeKey.substring(0, resumeKey.length() - GZIP_RESUME_SUFFIX.length()) : resumeKey;
+	}
+	
+	/**
+	 * @return whether an upload recorded under the resume key is running in this process
+	 */
+	static boolean isRunning(String resumeKey) {
+		return RUNNING_KEYS.contains(resumeKey);
+	}
+
+	private String getCachedUploadId() {
+		return resumeStore.getUploadId(getResumeKey());
+	}
+	
+	/**
+	 * Find the cached upload to resume, checking that the source still has 
+	 * the fingerprint it had when the upload started and is encrypted the 
+	 * same way. An upload of a source that has changed since is aborted and 
+	 * its state discarded, so none of its parts end up in the new object.
+	 * 
+	 * @return the upload id, or null if there is no upload to resume
+	 */
+	private String getResumableUploadId() {
+		ResumeEntry entry = resumeStore.getEntry(getResumeKey());
+		if (entry == null) {
+			return adoptLegacyUpload();
+		}
+		boolean sameSource = entry.getFingerprint() == null || entry.getFingerprint().equals(getSourceFingerprint());
+		byte[] iv = DigestUtils.fromHex(entry.getIv());
+		if (sameSource && (iv != null) == (encryption != null)) {
+			uploadIv = iv;
+			return entry.getUploadId();
+		}
+		
+		Log.i(TAG, "source or encryption changed since upload " + entry.getUploadId() + " started");
+		clearProgressCache();
+		try {
+			abortUpload(new AbortMultipartUploadRequest(s3bucketName, s3key, entry.getUploadId()));
+		} catch (AmazonClientException e) {
+			Log.w(TAG, "unable to abort upload " + entry.getUploadId(), e);
+		}
+		return null;
+	}
+	
+	/**
+	 * Move state an older version cached under the object key alone to this 
+	 * upload's key. It has no fingerprint, so only the part listing checks it.
+	 * 
+	 * @return the upload id, or null if there is no older state
+	 */
+	private String adoptLegacyUpload() {
+		String legacyKey = getLegacyResumeKey();
+		String uploadId = resumeStore.getUploadId(legacyKey);
+		if (uploadId == null || encryption != null) {
+			// older versions did not encrypt
+			return null;
+		}
+		List<PartRecord> parts = resumeStore.getParts(legacyKey);
+		File file = source.getFile();
+		resumeStore.startUpload(new ResumeEntry(getResumeKey(), uploadId, s3bucketName, s3key, 
+				file == null ? null : file.getAbsolutePath(), System.currentTimeMillis(), null, null));
+		for (PartRecord part : parts) {
+			resumeStore.addPart(getResumeKey(), part);
+		}
+		resumeStore.flush(getResumeKey());
+		resumeStore.clear(legacyKey);
+		return uploadId;
+	}
+	
+	/**
+	 * Fingerprint the source by its length, modification time and the part 
+	 * size, plus an MD5 of a few blocks spread through it and the id of the 
+	 * encryption key. This costs a few small reads however large the source is.
+	 */
+	private String getSourceFingerprint() {
+		if (sourceFingerprint != null) {
+			return sourceFingerprint;
+		}
+		long length = source.getLength();
+		File file = source.getFile();
+		MessageDigest digest = DigestUtils.newMd5();
+		byte[] buffer = new byte[FINGERPRINT_BUFFER_SIZE];
+		if (length > 0) {
+			long blocks = Math.min(FINGERPRINT_SAMPLES, (length + buffer.length - 1) / buffer.length);
+			for (int i = 0; i < blocks; i++) {
+				long position = blocks > 1 ? i * ((length - buffer.length) / (blocks - 1)) : 0;
+				try {
+					InputStream in = source.openRange(position, Math.min(buffer.length, length - position));
+					try {
+						int n;
+						while ((n = in.read(buffer)) != -1) {
+							digest.update(buffer, 0, n);
+						}
+					} finally {
+						in.close();
+					}
+				} catch (IOException e) {
+					throw new AmazonClientException("Unable to read upload source", e);
+				}
+			}
+		}
+		sourceFingerprint = length + ":" + (file == null ? 0 : file.lastModified()) + ":" + partSize 
+				+ ":" + DigestUtils.toHex(digest.digest()) + (encryption != null ? ":" + encryption.getKeyId() : "");
+		return sourceFingerprint;
+	}
+	
+	private List<PartRecord> getCachedParts() {
+		return resumeStore.getParts(getResumeKey());
+	}
+
+	private void cachePart(Part part, PartETag partETag) {
+		long started = System.nanoTime();
+		resumeStore.addPart(getResumeKey(), 
+				new PartRecord(part.number, partETag.getETag(), part.position, part.sourceLength));
+		if (metricsListener != null) {
+			metricsListener.etagPersisted(System.nanoTime() - started);
+		}
+	}
+	
+	private void flushProgressCache() {
+		long started = System.nanoTime();
+		resumeStore.flush(getResumeKey());
+		if (metricsListener != null) {
+			metricsListener.etagPersisted(System.nanoTime() - started);
+		}
+	}
+
+	private void initProgressCache(String uploadId) {
+		File file = source.getFile();
+		resumeStore.startUpload(new ResumeEntry(getResumeKey(), uploadId, s3bucketName, s3key, 
+				file == null ? null : file.getAbsolutePath(), System.currentTimeMillis(), 
+				getSourceFingerprint(), uploadIv == null ? null : DigestUtils.toHex(uploadIv)));
+	}
+
+	private void clearProgressCache() {
+		resumeStore.clear(getResumeKey());
+	}
+	
+	/**
+	 * Abort any incomplete upload cached for this key and discard its resume 
+	 * state. This makes a network request so do not call it on the main thread.
+	 */
+	public void abortCachedUpload() {
+		String uploadId = getCachedUploadId();
+		clearProgressCache();
+		if (uploadId != null) {
+			abortUpload(new AbortMultipartUploadRequest(s3bucketName, s3key, uploadId));
+		}
+	}
+	
+	public void interrupt() {
+		userInterrupted = true;
+		wakeWaiters();
+	}
+	
+	public void abort() {
+		userAborted = true;
+		wakeWaiters();
+	}
+	
+	private void wakeWaiters() {
+		synchronized (cancelLock) {
+			cancelLock.notifyAll();
+		}
+		BandwidthLimiter limiter = bandwidthLimiter;
+		if (limiter != null) {
+			limiter.wakeWaiters();
+		}
+	}
+	
+	
+	/**
+	 * Override to configure the multipart upload request. 
+	 * 
+	 * By default uploaded files are publicly readable. The ACL, storage class 
+	 * and metadata set here are also applied to files small enough to be sent 
+	 * in a single request.
+	 * 
+	 * @param initRequest S3 request object for the file to be uploaded
+	 */
+	protected void configureInitiateRequest(InitiateMultipartUploadRequest initRequest) {
+		initRequest.setCannedACL(CannedAccessControlList.PublicRead);
+	}
+	
+	public void setPrefs(SharedPreferences prefs) {
+		this.resumeStore = new SharedPreferencesResumeStore(prefs);
+	}
+	
+	public ResumeStore getResumeStore() {
+		return resumeStore;
+	}
+	
+	/**
+	 * Set where resume state is persisted. 
+	 * 
+	 * By default the part ETags are cached in SharedPreferences.
+	 * 
+	 * @param resumeStore store for the upload id and part ETags
+	 */
+	public void setResumeStore(ResumeStore resumeStore) {
+		this.resumeStore = resumeStore;
+	}
+	
+	public long getPartSize() {
+		return partSize;
+	}
+
+	public void setPartSize(long partSize) {
+		if (partSize < MIN_DEFAULT_PART_SIZE) {
+			throw new IllegalStateException("Part size is less than S3 minimum of " + MIN_DEFAULT_PART_SIZE);
+		} else {
+			this.partSize = partSize;
+		}	
+	}
+	
+	public PartSizer getPartSizer() {
+		return partSizer;
+	}
+	
+	/**
+	 * Size parts of files and channels adaptively instead of using the fixed 
+	 * part size. The size of each part is picked by the sizer as the part is 
+	 * started, from the throughput and failures of the parts before it. 
+	 * Compressed and streamed uploads still use the fixed part size, since 
+	 * their buffers are allocated up front. 
+	 * 
+	 * Whichever is used, parts are made larger where needed to fit the whole 
+	 * source in S3's limit of 10,000 parts.
+	 * 
+	 * @param partSizer sizer for upcoming parts, or null for fixed parts
+	 */
+	public void setPartSizer(PartSizer partSizer) {
+		this.partSizer = partSizer;
+	}
+	
+	public long getSinglePutThreshold() {
+		return singlePutThreshold;
+	}
+
+	/**
+	 * Set the file size below which the file is sent with a single PUT request 
+	 * instead of a multipart upload. 
+	 * 
+	 * Single request uploads cannot be resumed, but avoid the extra round trips 
+	 * of initiating and completing a multipart upload. The default is 5MB, the 
+	 * S3 minimum part size. Use 0 to always use multipart uploads.
+	 * 
+	 * @param singlePutThreshold size in bytes, at most 5GB
+	 */
+	public void setSinglePutThreshold(long singlePutThreshold) {
+		if (singlePutThreshold > MAX_SINGLE_PUT_SIZE) {
+			throw new IllegalStateException("Single put threshold is greater than S3 maximum of " + MAX_SINGLE_PUT_SIZE);
+		} else {
+			this.singlePutThreshold = singlePutThreshold;
+		}
+	}
+	
+	public boolean isGzip() {
+		return gzip;
+	}
+	
+	/**
+	 * Compress the upload with gzip as it is read. 
+	 * 
+	 * Each part is compressed as its own gzip member, and parts are cut once 
+	 * they hold a part's worth of compressed data, so they still meet the S3 
+	 * minimum. The members of a multipart object form a single valid gzip 
+	 * stream. The object is stored with a Content-Encoding of gzip, and 
+	 * progress is reported in uncompressed bytes. Each part in flight is 
+	 * compressed into a buffer of slightly more than the part size.
+	 * 
+	 * @param gzip true to compress the upload
+	 */
+	public void setGzip(boolean gzip) {
+		this.gzip = gzip;
+	}
+	
+	/**
+	 * @param gzipLevel a {@link Deflater} compression level, lower is faster
+	 */
+	public void setGzipLevel(int gzipLevel) {
+		if (gzipLevel != Deflater.DEFAULT_COMPRESSION 
+				&& (gzipLevel < Deflater.NO_COMPRESSION || gzipLevel > Deflater.BEST_COMPRESSION)) {
+			throw new IllegalStateException("Invalid compression level " + gzipLevel);
+		} else {
+			this.gzipLevel = gzipLevel;
+		}
+	}
+	
+	public CtrEncryption getEncryption() {
+		return encryption;
+	}
+	
+	/**
+	 * Encrypt the upload on the client as its parts are sent. 
+	 * 
+	 * Parts are encrypted on their own upload threads, after compression 
+	 * when gzip is also enabled. The IV and key id are added to the metadata 
+	 * of the initiate request, after configureInitiateRequest has run. An 
+	 * encrypted upload does not append or skip identical objects, and a 
+	 * compressed one cannot be resumed.
+	 * 
+	 * @param encryption the encryption to apply, or null to upload plaintext
+	 */
+	public void setEncryption(CtrEncryption encryption) {
+		this.encryption = encryption;
+	}
+	
+	public boolean isVerifyIntegrity() {
+		return verifyIntegrity;
+	}
+	
+	/**
+	 * Verify the ETag of the completed object. 
+	 * 
+	 * Every part is checked against an MD5 computed as it is streamed, and the 
+	 * completed object's ETag is checked against one derived from the part 
+	 * digests. Neither check reads the file a second time. A mismatch throws 
+	 * an AmazonClientException after the upload has completed.
+	 * 
+	 * @param verifyIntegrity true to verify the completed object
+	 */
+	public void setVerifyIntegrity(boolean verifyIntegrity) {
+		this.verifyIntegrity = verifyIntegrity;
+	}
+	
+	public boolean isSkipIfIdentical() {
+		return skipIfIdentical;
+	}
+	
+	/**
+	 * Skip the upload when the object at the key already has the same content. 
+	 * 
+	 * The object's ETag is fetched with a HEAD request and compared with the 
+	 * ETag this upload would produce, so a match depends on the object having 
+	 * been uploaded with the same part size and single put threshold, unless 
+	 * this app uploaded it and recorded its part lengths. With a part sizer 
+	 * set, only objects whose part lengths were recorded can match, others are 
+	 * uploaded without reading the source first. Objects encrypted with KMS 
+	 * keys never match. Does not apply to compressed uploads or sources of 
+	 * unknown length.
+	 * 
+	 * @param skipIfIdentical true to check for an identical object first
+	 */
+	public void setSkipIfIdentical(boolean skipIfIdentical) {
+		this.skipIfIdentical = skipIfIdentical;
+	}
+	
+	public boolean isAppendMode() {
+		return appendMode;
+	}
+	
+	/**
+	 * Upload only the bytes appended to a growing file since it was last 
+	 * uploaded to this key, such as a log or a recording. 
+	 * 
+	 * When the existing object is still a prefix of the file, the new object 
+	 * is assembled from server side copies of the existing one followed by 
+	 * the appended bytes. The prefix is read locally to confirm it has not 
+	 * changed, but is not sent again. Otherwise the whole file is uploaded. 
+	 * Only objects written by an uploader in append mode can be appended to, 
+	 * and the existing object must be at least 5MB. Does not apply to 
+	 * compressed uploads or sources of unknown length.
+	 * 
+	 * @param appendMode true to append to the existing object where possible
+	 */
+	public void setAppendMode(boolean appendMode) {
+		this.appendMode = appendMode;
+	}
+	
+	public ObjectLayoutCache getObjectLayoutCache() {
+		return layoutCache;
+	}
+	
+	/**
+	 * Set where the part layouts of uploaded objects are recorded for append mode 
+	 * and for skipping identical objects.
+	 */
+	public void setObjectLayoutCache(ObjectLayoutCache layoutCache) {
+		this.layoutCache = layoutCache;
+	}
+	
+	public FingerprintCache getFingerprintCache() {
+		return fingerprintCache;
+	}
+	
+	/**
+	 * Set where computed file ETags are cached, for example to share one 
+	 * cache between uploaders with different preferences.
+	 */
+	public void setFingerprintCache(FingerprintCache fingerprintCache) {
+		this.fingerprintCache = fingerprintCache;
+	}
+	
+	public int getConcurrency() {
+		return concurrency;
+	}
+
+	/**
+	 * Set the maximum number of parts to upload in parallel. 
+	 * 
+	 * The default of 1 uploads parts sequentially. With a higher value the 
+	 * progress listener is called from the part upload threads.
+	 * 
+	 * @param concurrency maximum number of parts in flight at once
+	 */
+	public void setConcurrency(int concurrency) {
+		if (concurrency < 1) {
+			throw new IllegalStateException("Concurrency must be at least 1");
+		} else {
+			this.concurrency = concurrency;
+		}
+	}
+	
+	/**
+	 * @return the number of parts that may be in flight now
+	 */
+	private int getWindow() {
+		return concurrencyController != null ? concurrencyController.getWindow() : concurrency;
+	}
+	
+	private int getMaxConcurrency() {
+		return concurrencyController != null ? concurrencyController.getCeiling() : concurrency;
+	}
+	
+	public ConcurrencyController getConcurrencyController() {
+		return concurrencyController;
+	}
+	
+	/**
+	 * Let a controller vary the number of parts in flight from the measured 
+	 * throughput, latency and failures of each part, instead of keeping the 
+	 * fixed concurrency level. The controller's ceiling takes the place of 
+	 * the concurrency level, and its window can be read at any time.
+	 * 
+	 * @param concurrencyController controller for the part window, or null
+	 */
+	public void setConcurrencyController(ConcurrencyController concurrencyController) {
+		this.concurrencyController = concurrencyController;
+	}
+	
+	/**
+	 * Set an executor to run part uploads on, for example one shared between 
+	 * several uploaders. 
+	 * 
+	 * No more than the concurrency level of parts from this uploader are 
+	 * submitted to the executor at once. By default a private thread pool is 
+	 * used when the concurrency level is greater than 1.
+	 * 
+	 * @param partExecutor executor for part uploads, or null
+	 */
+	public void setPartExecutor(Executor partExecutor) {
+		this.partExecutor = partExecutor;
+	}
+	
+	public BandwidthLimiter getBandwidthLimiter() {
+		return bandwidthLimiter;
+	}
+	
+	/**
+	 * Cap the upload rate. 
+	 * 
+	 * Share one limiter between uploaders to cap their combined rate, and 
+	 * change its rate at any time to throttle uploads that are running.
+	 * 
+	 * @param bandwidthLimiter limiter to pace uploads through, or null for no limit
+	 */
+	public void setBandwidthLimiter(BandwidthLimiter bandwidthLimiter) {
+		this.bandwidthLimiter = bandwidthLimiter;
+	}
+	
+	public RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+	
+	/**
+	 * Set how failed part uploads are retried. 
+	 * 
+	 * Each part is retried on its own, so a failure only resends that part. 
+	 * By default a part gets 4 attempts with exponential backoff. Use 
+	 * {@link RetryPolicy#NONE} to fail the upload on the first error.
+	 * 
+	 * @param retryPolicy policy for part retries
+	 */
+	public void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+	
+	public void setRetryListener(UploadRetryListener retryListener) {
+		this.retryListener = retryListener;
+	}
+	
+	public UploadMetricsListener getMetricsListener() {
+		return metricsListener;
+	}
+	
+	/**
+	 * Set a listener for request latencies, part throughput, retries and 
+	 * resume costs, such as an {@link UploadMetrics}. It is called on the 
+	 * upload and part threads, so it must be thread safe and return quickly.
+	 * 
+	 * @param metricsListener listener for upload metrics, or null
+	 */
+	public void setMetricsListener(UploadMetricsListener metricsListener) {
+		this.metricsListener = metricsListener;
+	}
+	
+	/**
+	 * @return the ETag of the object written by the last successful start(), 
+	 * or null
+	 */
+	public String getETag() {
+		return eTag;
+	}
+	
+	/**
+	 * @return the number of part retries made by the current or last call to start()
+	 */
+	public int getRetryCount() {
+		return retryCount.get();
+	}
+	
+	public UploadProgressListener getProgressListener() {
+		return progressListener;
+	}
+	
+	public void setProgressListener(UploadProgressListener progressListener) {
+		this.progressListener = progressListener;
+	}
+	
+	/**
+	 * Set how often progress is reported to the progress listener. 
+	 * 
+	 * Progress is reported at most once per interval, and only after at least 
+	 * the given number of bytes has been sent. The end of each part and the 
+	 * end of the upload are always reported. By default progress is reported 
+	 * at most every 250ms and 64KB.
+	 * 
+	 * @param intervalMillis minimum time between progress callbacks
+	 * @param intervalBytes minimum bytes sent between progress callbacks
+	 */
+	public void setProgressInterval(long intervalMillis, long intervalBytes) {
+		this.progressIntervalMillis = intervalMillis;
+		this.progressIntervalBytes = intervalBytes;
+	}
+	
+	/**
+	 * Set an executor to deliver progress callbacks on, for example one that 
+	 * posts to a Handler. 
+	 * 
+	 * By default callbacks are made on the upload thread. When the executor 
+	 * falls behind, pending progress updates are merged into one callback.
+	 * 
+	 * @param progressExecutor executor for progress callbacks, or null
+	 */
+	public void setProgressExecutor(Executor progressExecutor) {
+		this.progressExecutor = progressExecutor;
+	}
+
+	/**
+	 * An upload running on an executor. Cancelling it aborts the upload and 
+	 * discards any parts already on S3. The upload thread is never 
+	 * interrupted, since that would close the source's channel.
+	 */
+	public class UploadFuture extends FutureTask<String> {
+		
+		private final UploadCallback callback;
+		
+		private UploadFuture(UploadCallback callback) {
+			super(new Callable<String>() {
+				public String call() {
+					return upload();
+				}
+			});
+			this.callback = callback;
+		}
+		
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(false);
+			if (cancelled) {
+				abort();
+			}
+			return cancelled;
+		}
+		
+		@Override
+		protected void done() {
+			if (callback == null) {
+				return;
+			}
+			// a cancelled upload that had started may take a moment to tear down, 
+			// but the caller asked for it to stop so it is reported now
+			if (isCancelled()) {
+				callback.uploadFailed(new UploadIterruptedException("User aborted"));
+				return;
+			}
+			try {
+				callback.uploadCompleted(get());
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				callback.uploadFailed(cause instanceof Exception ? (Exception) cause : e);
+			} catch (InterruptedException e) {
+				// get() does not block once the task is done
+				Thread.currentThread().interrupt();
+			}
+		}
+		
+		/**
+		 * @return the URL of the uploaded file, rethrowing what stopped the upload
+		 */
+		String getResult() {
+			try {
+				return get();
+			} catch (CancellationException e) {
+				throw new UploadIterruptedException("User aborted", e);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new UploadIterruptedException("Upload thread interrupted", e);
+			} catch (ExecutionException e) {
+				Throwable cause = e.getCause();
+				if (cause instanceof RuntimeException) {
+					throw (RuntimeException) cause;
+				} else if (cause instanceof Error) {
+					throw (Error) cause;
+				}
+				throw new AmazonClientException("Upload failed", cause);
+			}
+		}
+		
+	}
+	
+	public interface UploadCallback {
+		/**
+		 * Called from the upload thread once the upload has completed.
+		 */
+		public void uploadCompleted(String location);
+		/**
+		 * Called from the upload thread once the upload has failed, or from 
+		 * the cancelling thread when it is cancelled. An interrupted or 
+		 * cancelled upload fails with an {@link UploadIterruptedException}.
+		 */
+		public void uploadFailed(Exception e);
+	}
+	
+	public interface UploadProgressListener {
+		/**
+		 * percentUploaded is -1 while uploading a source of unknown length.
+		 */
+		public void progressChanged(ProgressEvent progressEvent, long bytesUploaded, int percentUploaded);
+	}
+	
+	/**
+	 * Receives timings from an upload. Durations are in nanoseconds.
+	 */
+	public interface UploadMetricsListener {
+		
+		public void uploadInitiated(long latencyNanos);
+		
+		public void uploadCompleted(long latencyNanos);
+		
+		public void uploadAborted(long latencyNanos);
+		
+		/**
+		 * Called for each part sent, and for the request of a single PUT upload.
+		 * 
+		 * @param bytes bytes sent in the request body
+		 */
+		public void partUploaded(int partNumber, long bytes, long latencyNanos);
+		
+		/**
+		 * @param bytesSent bytes the failed attempt sent before it failed
+		 */
+		public void partRetried(int partNumber, int failedAttempt, long bytesSent);
+		
+		/**
+		 * @param bytesKept source bytes already on S3 that will not be sent again
+		 * @param bytesResent source bytes recorded as uploaded that will be sent again
+		 */
+		public void uploadResumed(int partsKept, long bytesKept, long bytesResent);
+		
+		/**
+		 * Called after each part is recorded in the resume store, and after 
+		 * the store is flushed.
+		 */
+		public void etagPersisted(long latencyNanos);
+		
+	}
+	
+	public interface UploadRetryListener {
+		/**
+		 * Called from the part upload thread before it waits to retry a part. 
+		 * The bytes sent by the failed attempt have already been taken off 
+		 * the progress total.
+		 */
+		public void partRetrying(int partNumber, int failedAttempt, long delayMillis, Exception cause);
 	}
 	
 }
@@ -0,0 +1,61 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r.utils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A bounded pool of equally sized byte arrays. 
+ * 
+ * Buffers are only allocated when the pool is empty and fewer than the 
+ * maximum have been handed out; otherwise take() blocks until one is released.
+ */
+public class BufferPool {
+
+	private final int bufferSize;
+	private final int maxBuffers;
+	private final List<byte[]> free = new ArrayList<byte[]>();
+	private int allocated = 0;
+	
+	public BufferPool(int bufferSize, int maxBuffers) {
+		this.bufferSize = bufferSize;
+		this.maxBuffers = maxBuffers;
+	}
+	
+	public synchronized byte[] take() throws InterruptedException {
+		while (free.isEmpty() && allocated >= maxBuffers) {
+			wait();
+		}
+		if (!free.isEmpty()) {
+			return free.remove(free.size() - 1);
+		}
+		allocated++;
+		return new byte[bufferSize];
+	}
+	
+	public synchronized void release(byte[] buffer) {
+		if (buffer != null && buffer.length == bufferSize) {
+			free.add(buffer);
+			notifyAll();
+		}
+	}
+	
+	public int getBufferSize() {
+		return bufferSize;
+	}
+	
+}
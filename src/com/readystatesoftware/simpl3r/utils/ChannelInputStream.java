@@ -0,0 +1,109 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r.utils;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads a region of a FileChannel with positioned reads, so several streams 
+ * can share one channel. Closing the stream does not close the channel. 
+ * 
+ * Reads go straight into the caller's array, so no buffers are allocated 
+ * beyond the one the channel keeps for each thread.
+ */
+public class ChannelInputStream extends InputStream {
+
+	private final FileChannel channel;
+	private final long start;
+	private final long end;
+	private long position;
+	private long mark;
+	private final byte[] single = new byte[1];
+	private ByteBuffer wrapped;
+	
+	public ChannelInputStream(FileChannel channel, long position, long length) {
+		this.channel = channel;
+		this.start = position;
+		this.end = position + length;
+		this.position = position;
+		this.mark = position;
+	}
+	
+	@Override
+	public int read() throws IOException {
+		int n;
+		do {
+			n = read(single, 0, 1);
+		} while (n == 0);
+		return n < 0 ? -1 : single[0] & 0xFF;
+	}
+	
+	@Override
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (position >= end) {
+			return -1;
+		}
+		len = (int) Math.min(len, end - position);
+		// callers usually read into the same array every time
+		if (wrapped == null || wrapped.array() != b) {
+			wrapped = ByteBuffer.wrap(b);
+		}
+		wrapped.limit(off + len).position(off);
+		int n = channel.read(wrapped, position);
+		if (n > 0) {
+			position += n;
+		}
+		return n;
+	}
+	
+	@Override
+	public long skip(long n) throws IOException {
+		long skipped = Math.max(0, Math.min(n, end - position));
+		position += skipped;
+		return skipped;
+	}
+	
+	@Override
+	public int available() throws IOException {
+		return (int) Math.min(Integer.MAX_VALUE, end - position);
+	}
+	
+	@Override
+	public boolean markSupported() {
+		return true;
+	}
+	
+	@Override
+	public synchronized void mark(int readlimit) {
+		mark = position;
+	}
+	
+	@Override
+	public synchronized void reset() throws IOException {
+		position = mark;
+	}
+	
+	/**
+	 * @return the number of bytes read from the region so far
+	 */
+	public long getBytesRead() {
+		return position - start;
+	}
+	
+}
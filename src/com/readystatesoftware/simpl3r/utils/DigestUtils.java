@@ -0,0 +1,100 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r.utils;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+import com.amazonaws.services.s3.model.PartETag;
+
+public class DigestUtils {
+
+	private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+	
+	public static MessageDigest newMd5() {
+		try {
+			return MessageDigest.getInstance("MD5");
+		} catch (NoSuchAlgorithmException e) {
+			// every Android and Java platform is required to provide MD5
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	public static String md5Hex(String s) {
+		try {
+			return toHex(newMd5().digest(s.getBytes("UTF-8")));
+		} catch (UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+	
+	/**
+	 * Compute the ETag S3 gives a multipart object, the MD5 of the binary part 
+	 * MD5s followed by the part count. 
+	 * 
+	 * @param partETags part ETags in ascending part number order
+	 * @return the expected object ETag, or null if a part ETag is not a plain MD5
+	 */
+	public static String multipartETag(List<PartETag> partETags) {
+		MessageDigest digest = newMd5();
+		for (PartETag partETag : partETags) {
+			byte[] partMd5 = fromHex(unquote(partETag.getETag()));
+			if (partMd5 == null || partMd5.length != 16) {
+				return null;
+			}
+			digest.update(partMd5);
+		}
+		return toHex(digest.digest()) + "-" + partETags.size();
+	}
+	
+	public static String unquote(String etag) {
+		if (etag != null && etag.length() >= 2 && etag.startsWith("\"") && etag.endsWith("\"")) {
+			return etag.substring(1, etag.length() - 1);
+		}
+		return etag;
+	}
+	
+	/**
+	 * @return the decoded bytes, or null if the string is not valid hex
+	 */
+	public static byte[] fromHex(String hex) {
+		if (hex == null || hex.length() % 2 != 0) {
+			return null;
+		}
+		byte[] bytes = new byte[hex.length() / 2];
+		for (int i = 0; i < bytes.length; i++) {
+			int hi = Character.digit(hex.charAt(i * 2), 16);
+			int lo = Character.digit(hex.charAt(i * 2 + 1), 16);
+			if (hi < 0 || lo < 0) {
+				return null;
+			}
+			bytes[i] = (byte) ((hi << 4) | lo);
+		}
+		return bytes;
+	}
+	
+	public static String toHex(byte[] bytes) {
+		char[] chars = new char[bytes.length * 2];
+		for (int i = 0; i < bytes.length; i++) {
+			chars[i * 2] = HEX_DIGITS[(bytes[i] >> 4) & 0xF];
+			chars[i * 2 + 1] = HEX_DIGITS[bytes[i] & 0xF];
+		}
+		return new String(chars);
+	}
+	
+}
@@ -0,0 +1,132 @@
+/***
+ * Copyright (c) 2012 readyState Software Ltd
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * 
+ */
+
+package com.readystatesoftware.simpl3r.utils;
+
+import java.util.Arrays;
+
+/**
+ * Keeps the most recent samples of a measurement in a fixed size ring. 
+ * 
+ * Recording a sample is a single array store under a short lock. Sorting 
+ * and percentiles are only computed when a snapshot is taken.
+ */
+public class RollingHistogram {
+
+	private final long[] samples;
+	private long count = 0;
+	
+	/**
+	 * @param capacity number of recent samples to keep
+	 */
+	public RollingHistogram(int capacity) {
+		if (capacity < 1) {
+			throw new IllegalStateException("Capacity must be at least 1");
+		}
+		samples = new long[capacity];
+	}
+	
+	public synchronized void record(long value) {
+		samples[(int) (count % samples.length)] = value;
+		count++;
+	}
+	
+	public synchronized void clear() {
+		count = 0;
+	}
+	
+	public Snapshot snapshot() {
+		long[] values;
+		long total;
+		synchronized (this) {
+			total = count;
+			// Arrays.copyOf needs API 9
+			values = new long[(int) Math.min(count, samples.length)];
+			System.arraycopy(samples, 0, values, 0, values.length);
+		}
+		Arrays.sort(values);
+		return new Snapshot(values, total);
+	}
+	
+	/**
+	 * The recent samples of a histogram at one point in time.
+	 */
+	public static class Snapshot {
+		
+		private final long[] values;
+		private final long totalCount;
+		
+		Snapshot(long[] values, long totalCount) {
+			this.values = values;
+			this.totalCount = totalCount;
+		}
+		
+		/**
+		 * @return the number of samples in the snapshot
+		 */
+		public int size() {
+			return values.length;
+		}
+		
+		/**
+		 * @return the number of samples ever recorded, including those rolled out
+		 */
+		public long getTotalCount() {
+			return totalCount;
+		}
+		
+		public long getMin() {
+			return values.length == 0 ? 0 : values[0];
+		}
+		
+		public long getMax() {
+			return values.length == 0 ? 0 : values[values.length - 1];
+		}
+		
+		public double getMean() {
+			if (values.length == 0) {
+				return 0;
+			}
+			double sum = 0;
+			for (long value : values) {
+				sum += value;
+			}
+			return sum / values.length;
+		}
+		
+		/**
+		 * @param quantile between 0 and 1, e.g. 0.99 for the 99th percentile
+		 */
+		public long getPercentile(double quantile) {
+			if (values.length == 0) {
+				return 0;
+			}
+			int index = (int) Math.ceil(quantile * values.length) - 1;
+			return values[Math.max(0, Math.min(values.length - 1, index))];
+		}
+		
+		public long getMedian() {
+			return getPercentile(0.5);
+		}
+		
+		@Override
+		public String toString() {
+			return "count=" + values.length + " min=" + getMin() + " p50=" + getMedian() 
+					+ " p90=" + getPercentile(0.9) + " p99=" + getPercentile(0.99) + " max=" + getMax();
+		}
+		
+	}
+	
+}